@@ -24,51 +24,74 @@ CREATE TABLE Account
 	cid	INTEGER,
 	amount	INTEGER,
 	accType INTEGER,
+	ver	rowversion,
 	PRIMARY KEY (acctId),
 	FOREIGN KEY (cid) references Customer (cid)
 );
 
 -- Savings account have type =1, checking accounts have type = 2
+-- ver is set by the server on every write and orders the changes of an account
 
-Insert INTO Account Values (1,7,100,1);
-Insert INTO Account Values (2,7,1000,1);
-Insert INTO Account Values (3,7,1000,1);
-Insert INTO Account Values (4,1,100,1);
-Insert INTO Account Values (5,2,100,1);
-Insert INTO Account Values (6,3,1000,1);
-Insert INTO Account Values (7,4,1100,1);
-Insert INTO Account Values (8,4,100,1);
-Insert INTO Account Values (9,5,2100,1);
-Insert INTO Account Values (10,6,10000,1);
-Insert INTO Account Values (11,7,100,1);
-Insert INTO Account Values (12,7,1000,1);
-Insert INTO Account Values (13,7,10000,1);
-Insert INTO Account Values (14,1,100,1);
-Insert INTO Account Values (15,8,100,1);
-Insert INTO Account Values (16,8,100,1);
-Insert INTO Account Values (17,9,12100,1);
-Insert INTO Account Values (18,9,1000,1);
-Insert INTO Account Values (19,10,12100,1);
-Insert INTO Account Values (20,10,1000000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (1,7,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (2,7,1000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (3,7,1000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (4,1,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (5,2,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (6,3,1000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (7,4,1100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (8,4,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (9,5,2100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (10,6,10000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (11,7,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (12,7,1000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (13,7,10000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (14,1,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (15,8,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (16,8,100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (17,9,12100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (18,9,1000,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (19,10,12100,1);
+Insert INTO Account (acctId, cid, amount, accType) Values (20,10,1000000,1);
 
 
-Insert INTO Account Values (101,7,10000,2);
-Insert INTO Account Values (102,7,10100,2);
-Insert INTO Account Values (103,7,10500,2);
-Insert INTO Account Values (104,1,1050,2);
-Insert INTO Account Values (105,2,1070,2);
-Insert INTO Account Values (106,3,10400,2);
-Insert INTO Account Values (107,4,1100,2);
-Insert INTO Account Values (108,4,100,2);
-Insert INTO Account Values (109,5,2100,2);
-Insert INTO Account Values (110,6,150000,2);
-Insert INTO Account Values (111,7,1700,2);
-Insert INTO Account Values (112,7,10500,2);
-Insert INTO Account Values (113,7,150000,2);
-Insert INTO Account Values (114,1,1020,2);
-Insert INTO Account Values (115,8,1020,2);
-Insert INTO Account Values (116,8,100,2);
-Insert INTO Account Values (117,9,142100,2);
-Insert INTO Account Values (118,9,10020,2);
-Insert INTO Account Values (119,10,12100,2);
-Insert INTO Account Values (120,10,1000000,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (101,7,10000,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (102,7,10100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (103,7,10500,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (104,1,1050,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (105,2,1070,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (106,3,10400,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (107,4,1100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (108,4,100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (109,5,2100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (110,6,150000,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (111,7,1700,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (112,7,10500,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (113,7,150000,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (114,1,1020,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (115,8,1020,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (116,8,100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (117,9,142100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (118,9,10020,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (119,10,12100,2);
+Insert INTO Account (acctId, cid, amount, accType) Values (120,10,1000000,2);
+
+-- Client request ids of transfers already performed and their outcomes
+
+CREATE TABLE TransferRequest
+(
+    requestId varchar(64) NOT NULL,
+	outcome	varchar(200),
+	created	datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
+	PRIMARY KEY (requestId)
+);
+
+-- Progress of bulk balance jobs so an interrupted job can resume
+
+CREATE TABLE BalanceJobCheckpoint
+(
+    jobName varchar(64) NOT NULL,
+	lastAcctId	INTEGER,
+	rowsDone	INTEGER NOT NULL DEFAULT 0,
+	finished	bit NOT NULL DEFAULT 0,
+	PRIMARY KEY (jobName)
+);
@@ -1,3 +1,5 @@
+if exists (select * from INFORMATION_SCHEMA.TABLES where TABLE_NAME = 'BalanceJobCheckpoint') DROP TABLE BalanceJobCheckpoint;
+if exists (select * from INFORMATION_SCHEMA.TABLES where TABLE_NAME = 'TransferRequest') DROP TABLE TransferRequest;
 if exists (select * from INFORMATION_SCHEMA.TABLES where TABLE_NAME = 'Account') DROP TABLE Account;
 -- These are tables that may exist from 304
 if exists (select * from INFORMATION_SCHEMA.TABLES where TABLE_NAME = 'OrderedProduct') DROP TABLE OrderedProduct;
@@ -0,0 +1,267 @@
+package junit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import trans.DatabaseTransactions;
+
+/**
+ * Builds the seed bank data once and resets the database to it between tests
+ * with the cheapest method that works.
+ *
+ * The seed rows of every table are kept in memory after the first load. A reset
+ * first asks the server for a fingerprint of every table in one batch: the row
+ * count, CHECKSUM_AGG(BINARY_CHECKSUM(*)) and for Account the highest ver
+ * rowversion, which grows on every insert and update of an account. Only these
+ * few numbers cross the wire. If the fingerprint is the one taken after the
+ * last load, no table changed and nothing is reloaded. Otherwise the tables are
+ * emptied and the seed rows are reinserted with multi-row inserts in a single
+ * transaction, which avoids re-running drop.sql and bank.sql and re-enabling
+ * snapshot isolation. Rowversion columns are left out of the seed, since the
+ * server sets them on every insert. The caches of the object under test are
+ * cleared on every reset.
+ *
+ * Reverting a database snapshot is not possible because the tests run in
+ * tempdb, and rolling back a wrapping transaction is not possible because the
+ * operations under test commit and use several connections.
+ */
+public class Fixture {
+	/**
+	 * Tables in the order rows are inserted, children after parents
+	 */
+	private static final String[] TABLES = { DatabaseTransactions.CUSTOMER_TABLE_NAME,
+			DatabaseTransactions.ACCOUNT_TABLE_NAME, "TransferRequest", "BalanceJobCheckpoint" };
+
+	/**
+	 * Tables referenced by a foreign key, which cannot be truncated
+	 */
+	private static final String REFERENCED_TABLE = DatabaseTransactions.CUSTOMER_TABLE_NAME;
+
+	/**
+	 * Table with a ver rowversion column
+	 */
+	private static final String VERSIONED_TABLE = DatabaseTransactions.ACCOUNT_TABLE_NAME;
+
+	/**
+	 * SQL Server allows at most 2100 parameters per statement
+	 */
+	private static final int MAX_PARAMETERS = 2000;
+
+	/**
+	 * Object under test
+	 */
+	private final DatabaseTransactions dt;
+
+	/**
+	 * Connection used to check and reset the tables
+	 */
+	private Connection con;
+
+	/**
+	 * Seed rows by table, in TABLES order
+	 */
+	private final List<List<Object[]>> seed = new ArrayList<>();
+
+	/**
+	 * Inserted column list by table, in TABLES order
+	 */
+	private final List<String> columns = new ArrayList<>();
+
+	/**
+	 * Fingerprint of every table after the seed was last loaded
+	 */
+	private List<Object[]> clean;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dt
+	 *           object under test
+	 */
+	public Fixture(DatabaseTransactions dt) {
+		this.dt = dt;
+	}
+
+	/**
+	 * Loads the seed data with drop.sql and bank.sql and keeps a copy of it.
+	 *
+	 * @throws Exception
+	 *                   if a file I/O or database error occurs
+	 */
+	public void build() throws Exception {
+		dt.load();
+		con = DatabaseTransactions.openConnection();
+		try {
+			Statement stmt = con.createStatement();
+			stmt.execute(selectAll());
+			for (int t = 0; t < TABLES.length; t++) {
+				ResultSet rs = stmt.getResultSet();
+				ResultSetMetaData meta = rs.getMetaData();
+				StringBuilder names = new StringBuilder();
+				for (int c = 1; c <= meta.getColumnCount(); c++)
+					if (!isRowVersion(meta, c))
+						names.append(names.length() == 0 ? "" : ", ").append(meta.getColumnName(c));
+				columns.add(names.toString());
+				seed.add(rows(rs));
+				stmt.getMoreResults();
+			}
+			stmt.close();
+			clean = fingerprint();
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+	}
+
+	/**
+	 * Restores the seed data if any table changed since it was loaded and clears
+	 * the caches of the object under test.
+	 *
+	 * @throws Exception
+	 *                   if a file I/O or database error occurs
+	 */
+	public void reset() throws Exception {
+		if (con == null) {
+			build();
+			return;
+		}
+		try {
+			if (!same(fingerprint(), clean))
+				reload();
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+		dt.resetCaches();
+	}
+
+	/**
+	 * Empties the tables and reinserts the seed rows without committing.
+	 */
+	private void reload() throws SQLException {
+		Statement stmt = con.createStatement();
+		for (int t = TABLES.length - 1; t >= 0; t--) {
+			if (TABLES[t].equals(REFERENCED_TABLE))
+				stmt.executeUpdate("DELETE FROM " + TABLES[t]);
+			else
+				stmt.executeUpdate("TRUNCATE TABLE " + TABLES[t]);
+		}
+		stmt.close();
+		for (int t = 0; t < TABLES.length; t++)
+			insert(TABLES[t], columns.get(t), seed.get(t));
+		clean = fingerprint();
+	}
+
+	/**
+	 * Returns a batch selecting every table in TABLES order, each ordered by its
+	 * primary key in the first column.
+	 */
+	private static String selectAll() {
+		StringBuilder sql = new StringBuilder();
+		for (String table : TABLES)
+			sql.append("SELECT * FROM ").append(table).append(" ORDER BY 1;");
+		return sql.toString();
+	}
+
+	/**
+	 * Reads the rows of a result set without rowversion columns.
+	 */
+	private static List<Object[]> rows(ResultSet rs) throws SQLException {
+		ResultSetMetaData meta = rs.getMetaData();
+		List<Integer> read = new ArrayList<>();
+		for (int c = 1; c <= meta.getColumnCount(); c++)
+			if (!isRowVersion(meta, c))
+				read.add(c);
+		List<Object[]> rows = new ArrayList<>();
+		while (rs.next()) {
+			Object[] row = new Object[read.size()];
+			for (int i = 0; i < row.length; i++)
+				row[i] = rs.getObject(read.get(i));
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns true if a column is a rowversion, which SQL Server reports under its
+	 * old name timestamp.
+	 */
+	private static boolean isRowVersion(ResultSetMetaData meta, int column) throws SQLException {
+		return meta.getColumnTypeName(column).equalsIgnoreCase("timestamp");
+	}
+
+	/**
+	 * Returns the fingerprint of every table, one row per table in TABLES order.
+	 */
+	private List<Object[]> fingerprint() throws SQLException {
+		StringBuilder sql = new StringBuilder();
+		for (String table : TABLES) {
+			sql.append("SELECT count_big(*), CHECKSUM_AGG(BINARY_CHECKSUM(*))");
+			if (table.equals(VERSIONED_TABLE))
+				sql.append(", CAST(max(ver) AS bigint)");
+			sql.append(" FROM ").append(table).append(';');
+		}
+		Statement stmt = con.createStatement();
+		try {
+			stmt.execute(sql.toString());
+			List<Object[]> fingerprint = new ArrayList<>();
+			for (int t = 0; t < TABLES.length; t++) {
+				fingerprint.addAll(rows(stmt.getResultSet()));
+				stmt.getMoreResults();
+			}
+			return fingerprint;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Returns true if two fingerprints are equal.
+	 */
+	private static boolean same(List<Object[]> a, List<Object[]> b) {
+		if (a.size() != b.size())
+			return false;
+		for (int t = 0; t < a.size(); t++)
+			if (!Arrays.equals(a.get(t), b.get(t)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Inserts rows into a table with as many rows per statement as the parameter
+	 * limit allows.
+	 */
+	private void insert(String table, String columnList, List<Object[]> rows) throws SQLException {
+		if (rows.isEmpty())
+			return;
+		int columns = rows.get(0).length;
+		int perStatement = Math.max(1, MAX_PARAMETERS / columns);
+		for (int start = 0; start < rows.size(); start += perStatement) {
+			int count = Math.min(perStatement, rows.size() - start);
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(columnList)
+					.append(") VALUES ");
+			for (int r = 0; r < count; r++) {
+				sql.append(r == 0 ? "(" : ", (");
+				for (int c = 0; c < columns; c++)
+					sql.append(c == 0 ? "?" : ", ?");
+				sql.append(')');
+			}
+			PreparedStatement stmt = con.prepareStatement(sql.toString());
+			int param = 1;
+			for (int r = start; r < start + count; r++)
+				for (Object value : rows.get(r))
+					stmt.setObject(param++, value);
+			stmt.executeUpdate();
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import trans.AccountSnapshot;
+
+/**
+ * Tests the in-memory queries of AccountSnapshot. No database is needed.
+ */
+public class TestAccountSnapshot {
+	/**
+	 * Accounts as acctId, cid, amount and accType
+	 */
+	private static final int[][] ACCOUNTS = { { 1, 1, 100, 1 }, { 2, 2, 500, 1 }, { 3, 1, -20, 2 },
+			{ 4, 3, 500, 2 }, { 5, 2, 7, 1 }, { 6, 1, 900, 2 } };
+
+	/**
+	 * Tests filters with and without a selection.
+	 */
+	@Test
+	public void testFilter() {
+		AccountSnapshot snapshot = AccountSnapshot.of(ACCOUNTS);
+
+		int[] savings = snapshot.filterEquals(AccountSnapshot.ACC_TYPE, 1, null);
+		assertArrayEquals(new int[] { 0, 1, 4 }, savings);
+		assertArrayEquals(new int[] { 1 }, snapshot.filter(AccountSnapshot.AMOUNT, v -> v >= 500, savings));
+		assertArrayEquals(new int[] { 1, 3, 5 }, snapshot.filter(AccountSnapshot.AMOUNT, v -> v >= 500, null));
+		assertArrayEquals(new int[0], snapshot.filterEquals(AccountSnapshot.CID, 9, null));
+		assertEquals(607, snapshot.sum(AccountSnapshot.AMOUNT, savings));
+		assertEquals(1987, snapshot.sum(AccountSnapshot.AMOUNT, null));
+	}
+
+	/**
+	 * Tests grouped sums over dense and sparse keys.
+	 */
+	@Test
+	public void testGroupBySum() {
+		AccountSnapshot snapshot = AccountSnapshot.of(ACCOUNTS);
+
+		Map<Integer, Long> expected = new TreeMap<>();
+		expected.put(1, 980L);
+		expected.put(2, 507L);
+		expected.put(3, 500L);
+		assertEquals(expected, snapshot.groupBySum(AccountSnapshot.CID, AccountSnapshot.AMOUNT, null));
+
+		expected.clear();
+		expected.put(1, -20L);
+		expected.put(3, 500L);
+		int[] type2 = snapshot.filterEquals(AccountSnapshot.ACC_TYPE, 2, null);
+		int[] selection = snapshot.filter(AccountSnapshot.ACCT_ID, v -> v < 6, type2);
+		assertEquals(expected, snapshot.groupBySum(AccountSnapshot.CID, AccountSnapshot.AMOUNT, selection));
+
+		// Keys too far apart for the array path
+		AccountSnapshot sparse = AccountSnapshot.of(new int[][] { { 1, Integer.MIN_VALUE, 5, 1 },
+				{ 2, Integer.MAX_VALUE, 6, 1 }, { 3, Integer.MIN_VALUE, 7, 1 } });
+		expected.clear();
+		expected.put(Integer.MIN_VALUE, 12L);
+		expected.put(Integer.MAX_VALUE, 6L);
+		assertEquals(expected, sparse.groupBySum(AccountSnapshot.CID, AccountSnapshot.AMOUNT, null));
+
+		assertEquals(0, snapshot.groupBySum(AccountSnapshot.CID, AccountSnapshot.AMOUNT, new int[0]).size());
+	}
+
+	/**
+	 * Tests top k rows in descending order, including ties and k past the number
+	 * of rows.
+	 */
+	@Test
+	public void testTopK() {
+		AccountSnapshot snapshot = AccountSnapshot.of(ACCOUNTS);
+
+		int[] top = snapshot.topK(AccountSnapshot.AMOUNT, 3, null);
+		assertEquals(3, top.length);
+		assertEquals(5, top[0]);
+		assertEquals(500, snapshot.get(AccountSnapshot.AMOUNT, top[1]));
+		assertEquals(500, snapshot.get(AccountSnapshot.AMOUNT, top[2]));
+
+		int[] customer1 = snapshot.filterEquals(AccountSnapshot.CID, 1, null);
+		assertArrayEquals(new int[] { 5, 0, 2 }, snapshot.topK(AccountSnapshot.AMOUNT, 10, customer1));
+		assertArrayEquals(new int[0], snapshot.topK(AccountSnapshot.AMOUNT, 0, null));
+
+		// Compare with a full sort on more rows than the heap holds
+		int[][] many = new int[200][];
+		for (int i = 0; i < many.length; i++)
+			many[i] = new int[] { i, 1, (i * 7919) % 1000, 1 };
+		AccountSnapshot large = AccountSnapshot.of(many);
+		int[] top10 = large.topK(AccountSnapshot.AMOUNT, 10, null);
+		int[] sorted = new int[many.length];
+		for (int i = 0; i < many.length; i++)
+			sorted[i] = many[i][2];
+		Arrays.sort(sorted);
+		for (int i = 0; i < top10.length; i++)
+			assertEquals(sorted[sorted.length - 1 - i], large.get(AccountSnapshot.AMOUNT, top10[i]));
+	}
+
+	/**
+	 * Tests that a snapshot written to a file maps back with the same values.
+	 */
+	@Test
+	public void testWriteAndMap() throws Exception {
+		AccountSnapshot snapshot = AccountSnapshot.of(ACCOUNTS);
+		Path file = Files.createTempFile("accounts", ".snapshot");
+		try {
+			snapshot.writeTo(file);
+			snapshot.writeTo(file); // Writing again must not consume the columns
+			AccountSnapshot mapped = AccountSnapshot.map(file);
+			assertEquals(ACCOUNTS.length, mapped.rows());
+			for (int row = 0; row < ACCOUNTS.length; row++)
+				for (int c = 0; c < 4; c++)
+					assertEquals(ACCOUNTS[row][c], mapped.get(c, row));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Tests that a file whose header claims more rows than it holds or than a
+	 * column can hold is rejected rather than mapped at a wrapped offset.
+	 */
+	@Test
+	public void testMapBadRowCount() throws Exception {
+		Path file = Files.createTempFile("accounts", ".snapshot");
+		try {
+			for (int rows : new int[] { 200_000_000, AccountSnapshot.MAX_ROWS + 1, -1 }) {
+				ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+				header.putInt(0x41434354).putInt(rows);
+				Files.write(file, header.array());
+				assertThrows(IOException.class, () -> AccountSnapshot.map(file));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
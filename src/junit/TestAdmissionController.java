@@ -0,0 +1,123 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import trans.AdmissionController;
+import trans.AdmissionRejectedException;
+import trans.Deadline;
+
+/**
+ * Tests the concurrency limits of AdmissionController. No database is needed.
+ */
+public class TestAdmissionController {
+	/**
+	 * Tests that calls over the limit are rejected and that reads and writes have
+	 * separate limits.
+	 */
+	@Test
+	public void testLimit() throws Exception {
+		AdmissionController admission = new AdmissionController(2, 10, 0);
+
+		AdmissionController.Permit p1 = admission.acquire(AdmissionController.Kind.READ, null);
+		AdmissionController.Permit p2 = admission.acquire(AdmissionController.Kind.READ, null);
+		assertThrows(AdmissionRejectedException.class, () -> admission.acquire(AdmissionController.Kind.READ, null));
+		assertEquals(1, admission.getRejected(AdmissionController.Kind.READ));
+		assertEquals(2, admission.getInFlight(AdmissionController.Kind.READ));
+
+		// Writes are admitted while reads are at their limit
+		admission.acquire(AdmissionController.Kind.WRITE, null).release();
+
+		p1.release();
+		p1.release(); // A second release is ignored
+		assertEquals(1, admission.getInFlight(AdmissionController.Kind.READ));
+		admission.acquire(AdmissionController.Kind.READ, null).release();
+		p2.release();
+		assertEquals(0, admission.getInFlight(AdmissionController.Kind.READ));
+		assertEquals(3, admission.getAdmitted(AdmissionController.Kind.READ));
+	}
+
+	/**
+	 * Tests that a caller waits no longer than its deadline for a slot.
+	 */
+	@Test
+	public void testWaitBoundedByDeadline() throws Exception {
+		AdmissionController admission = new AdmissionController(1, 1, 5000);
+
+		AdmissionController.Permit held = admission.acquire(AdmissionController.Kind.WRITE, null);
+		try {
+			long start = System.currentTimeMillis();
+			assertThrows(AdmissionRejectedException.class,
+					() -> admission.acquire(AdmissionController.Kind.WRITE, Deadline.in(100)));
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			held.release();
+		}
+		admission.acquire(AdmissionController.Kind.WRITE, Deadline.in(100)).release();
+	}
+
+	/**
+	 * Tests that a waiting caller is admitted when a slot is released.
+	 */
+	@Test
+	public void testWaitForRelease() throws Exception {
+		AdmissionController admission = new AdmissionController(1, 1, 5000);
+
+		AdmissionController.Permit held = admission.acquire(AdmissionController.Kind.READ, null);
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Release early
+			}
+			held.release();
+		});
+		releaser.start();
+		admission.acquire(AdmissionController.Kind.READ, null).release();
+		releaser.join();
+		assertEquals(0, admission.getRejected(AdmissionController.Kind.READ));
+	}
+
+	/**
+	 * Tests that the limit is cut multiplicatively on overload and on a latency
+	 * well above the no-load latency.
+	 */
+	@Test
+	public void testMultiplicativeDecrease() throws Exception {
+		AdmissionController admission = new AdmissionController(10, 20, 0);
+
+		AdmissionController.Permit permit = admission.acquire(AdmissionController.Kind.READ, null);
+		permit.overloaded();
+		permit.release();
+		assertEquals(9, admission.getLimit(AdmissionController.Kind.READ));
+
+		// The previous call set a no-load latency of well under 20 milliseconds
+		permit = admission.acquire(AdmissionController.Kind.READ, null);
+		Thread.sleep(20);
+		permit.release();
+		assertEquals(8, admission.getLimit(AdmissionController.Kind.READ));
+		assertEquals(10, admission.getLimit(AdmissionController.Kind.WRITE));
+	}
+
+	/**
+	 * Tests that the limit grows additively while calls use the limit and complete
+	 * at the no-load latency, and never beyond the maximum.
+	 */
+	@Test
+	public void testAdditiveIncrease() throws Exception {
+		AdmissionController admission = new AdmissionController(4, 5, 0);
+
+		AdmissionController.Permit[] permits = new AdmissionController.Permit[4];
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < permits.length; i++)
+				permits[i] = admission.acquire(AdmissionController.Kind.WRITE, null);
+			Thread.sleep(10);
+			for (AdmissionController.Permit permit : permits)
+				permit.release();
+		}
+		assertEquals(5, admission.getLimit(AdmissionController.Kind.WRITE));
+	}
+}
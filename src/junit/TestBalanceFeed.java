@@ -0,0 +1,87 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.jupiter.api.Test;
+
+import trans.BalanceChange;
+import trans.BalanceFeed;
+
+/**
+ * Tests how BalanceFeed coalesces and orders balance changes. Signals are
+ * delivered on the calling thread. No database is needed.
+ */
+public class TestBalanceFeed {
+	/**
+	 * Tests that a change published after a newer one of the same account is
+	 * dropped, whether the newer one is pending or already delivered.
+	 */
+	@Test
+	public void testStaleChangeDropped() {
+		BalanceFeed feed = new BalanceFeed(Runnable::run);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+
+		// Pending: the newer balance stays queued
+		feed.publish(7, 4, 900, 20);
+		feed.publish(7, 4, 1000, 10);
+		feed.publish(107, 4, 1200, 11);
+		recorder.subscription.request(Long.MAX_VALUE);
+		assertEquals("[Balance for account 7: 900, Balance for account 107: 1200]", recorder.received.toString());
+
+		// Delivered: an older balance is not delivered after it
+		feed.publish(7, 4, 1000, 10);
+		feed.publish(107, 4, 1300, 21);
+		assertEquals("[Balance for account 7: 900, Balance for account 107: 1200, Balance for account 107: 1300]",
+				recorder.received.toString());
+	}
+
+	/**
+	 * Tests that undelivered changes of an account are replaced by the newest
+	 * one.
+	 */
+	@Test
+	public void testPendingChangeReplaced() {
+		BalanceFeed feed = new BalanceFeed(Runnable::run);
+		Recorder recorder = new Recorder();
+		feed.subscribeAccounts(new int[] { 8 }, recorder);
+
+		feed.publish(8, 4, 100, 1);
+		feed.publish(8, 4, 50, 2);
+		feed.publish(9, 4, 10, 3);
+		recorder.subscription.request(5);
+		assertEquals("[Balance for account 8: 50]", recorder.received.toString());
+	}
+
+	/**
+	 * Subscriber recording the changes it receives. Requests nothing until told.
+	 */
+	private static class Recorder implements Flow.Subscriber<BalanceChange> {
+		private final List<BalanceChange> received = new ArrayList<>();
+
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(BalanceChange change) {
+			received.add(change);
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			throw new AssertionError(e);
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package junit;
+
+import static org.junit.Assert.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import trans.DatabaseTransactions;
+
+/**
+ * Guards readBalance, transfer and getTotals against performance regressions
+ * that leave TestTransactions green. Each operation is run in a fixed workload
+ * and measured for p50 and p99 latency, server round trips and bytes allocated
+ * per call. The measurements are compared with the baseline checked in as
+ * data/perf-baseline.properties and the test fails with a table of every
+ * metric past its threshold.
+ *
+ * Round trips are the packets the server read from the connection, taken from
+ * sys.dm_exec_connections. Allocations are the bytes allocated by the calling
+ * thread. The operations' progress messages are not written while measuring,
+ * but building the messages still counts toward the allocations. An operation
+ * with a metric missing from the baseline is skipped, not compared. When the
+ * system property perf.record is true every operation is recorded instead of
+ * compared and the baseline files are rewritten. Record on the machine that
+ * runs the gate and commit the updated baseline file.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class TestPerformance {
+	/**
+	 * Checked-in baseline and its copy read at run time
+	 */
+	private static final Path[] BASELINE_FILES = { Paths.get("src/data/perf-baseline.properties"),
+			Paths.get("bin/data/perf-baseline.properties") };
+
+	/**
+	 * Calls before measuring, to warm up the JIT, driver and plan cache
+	 */
+	private static final int WARMUP = 50;
+
+	/**
+	 * Measured calls per operation
+	 */
+	private static final int CALLS = 500;
+
+	/**
+	 * Latency may grow by this factor plus LATENCY_SLACK_MICROS before failing
+	 */
+	private static final double LATENCY_FACTOR = 1.5;
+
+	private static final long LATENCY_SLACK_MICROS = 500;
+
+	/**
+	 * Allocations may grow by this factor plus ALLOC_SLACK_BYTES before failing
+	 */
+	private static final double ALLOC_FACTOR = 1.25;
+
+	private static final long ALLOC_SLACK_BYTES = 4096;
+
+	/**
+	 * Round trips per call are deterministic, a tenth covers rounding
+	 */
+	private static final double ROUND_TRIP_SLACK = 0.1;
+
+	/**
+	 * True to record a new baseline instead of comparing with it
+	 */
+	private static final boolean RECORD = Boolean.getBoolean("perf.record");
+
+	/**
+	 * Class being tested
+	 */
+	private static DatabaseTransactions dt;
+
+	/**
+	 * Connection used by the operations under test
+	 */
+	private static Connection con;
+
+	/**
+	 * Connection used to read server counters
+	 */
+	private static Connection monitor;
+
+	/**
+	 * Session id of con
+	 */
+	private static int session;
+
+	/**
+	 * Baseline values by "operation.metric"
+	 */
+	private static Properties baseline;
+
+	/**
+	 * Loads the seed data and the baseline.
+	 *
+	 * @throws Exception
+	 *                   if an error occurs
+	 */
+	@BeforeAll
+	public static void init() throws Exception {
+		dt = new DatabaseTransactions();
+		con = dt.connect();
+		dt.load();
+		monitor = DatabaseTransactions.openConnection();
+		monitor.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT @@SPID");
+		rs.next();
+		session = rs.getInt(1);
+		stmt.close();
+		con.commit();
+
+		dt.setPauses(false);
+
+		baseline = new Properties();
+		for (Path file : BASELINE_FILES) {
+			if (Files.exists(file)) {
+				try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+					baseline.load(in);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Saves the baseline when recording.
+	 *
+	 * @throws Exception
+	 *                   if an error occurs
+	 */
+	@AfterAll
+	public static void done() throws Exception {
+		dt.setPauses(true);
+		monitor.close();
+		if (RECORD)
+			saveBaseline();
+	}
+
+	/**
+	 * Checks readBalance of existing accounts.
+	 */
+	@Test
+	@Order(1)
+	public void testReadBalance() throws Exception {
+		check("readBalance", i -> dt.readBalance(1 + i % 20));
+	}
+
+	/**
+	 * Checks transfers back and forth between two accounts of one customer.
+	 */
+	@Test
+	@Order(2)
+	public void testTransfer() throws Exception {
+		check("transfer", i -> {
+			if (i % 2 == 0)
+				dt.transfer(10, 7, 107);
+			else
+				dt.transfer(10, 107, 7);
+		});
+	}
+
+	/**
+	 * Checks getTotals without its pause between queries.
+	 */
+	@Test
+	@Order(3)
+	public void testGetTotals() throws Exception {
+		check("getTotals", i -> dt.getTotals(con));
+	}
+
+	/**
+	 * Operation run by a workload
+	 */
+	private interface Call {
+		void run(int i) throws SQLException;
+	}
+
+	/**
+	 * Measures an operation and compares it with its baseline, or records it when
+	 * recording.
+	 */
+	private void check(String op, Call call) throws SQLException, IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long[] latencies = new long[CALLS];
+		long packets;
+		long allocated;
+
+		// Keep console output of the operations out of latency and allocations
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			for (int i = 0; i < WARMUP; i++)
+				call.run(i);
+
+			packets = serverPackets();
+			allocated = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < CALLS; i++) {
+				long start = System.nanoTime();
+				call.run(i);
+				latencies[i] = (System.nanoTime() - start) / 1000;
+			}
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+			packets = serverPackets() - packets;
+		} finally {
+			System.setOut(console);
+		}
+
+		Arrays.sort(latencies);
+		double[] current = { latencies[CALLS / 2], latencies[CALLS * 99 / 100], (double) packets / CALLS,
+				(double) allocated / CALLS };
+		String[] metrics = { "p50Micros", "p99Micros", "roundTrips", "allocBytes" };
+		System.out.printf(Locale.ROOT, "%s: p50 %.0f us, p99 %.0f us, %.2f round trips, %.0f bytes per call%n", op,
+				current[0], current[1], current[2], current[3]);
+
+		if (RECORD) {
+			for (int m = 0; m < metrics.length; m++)
+				baseline.setProperty(op + "." + metrics[m], String.format(Locale.ROOT, "%.2f", current[m]));
+			System.out.println("Recorded baseline for " + op + ".");
+			return;
+		}
+
+		for (String metric : metrics)
+			assumeTrue(baseline.getProperty(op + "." + metric) != null,
+					"No baseline for " + op + "." + metric + ", record one with -Dperf.record=true.");
+
+		StringBuilder diff = new StringBuilder();
+		for (int m = 0; m < metrics.length; m++) {
+			double base = Double.parseDouble(baseline.getProperty(op + "." + metrics[m]));
+			double limit = limit(metrics[m], base);
+			if (current[m] > limit) {
+				double change = base == 0 ? 100 : 100 * (current[m] - base) / base;
+				diff.append(String.format(Locale.ROOT,
+						"%n  %-24s baseline %12.2f  current %12.2f  limit %12.2f  %+7.1f%%", op + "." + metrics[m],
+						base, current[m], limit, change));
+			}
+		}
+		if (diff.length() > 0)
+			fail(op + " regressed past its baseline:" + diff);
+	}
+
+	/**
+	 * Returns the highest value of a metric that does not count as a regression.
+	 */
+	private static double limit(String metric, double base) {
+		switch (metric) {
+		case "roundTrips":
+			return base + ROUND_TRIP_SLACK;
+		case "allocBytes":
+			return base * ALLOC_FACTOR + ALLOC_SLACK_BYTES;
+		default:
+			return base * LATENCY_FACTOR + LATENCY_SLACK_MICROS;
+		}
+	}
+
+	/**
+	 * Returns the number of packets the server has read from the connection under
+	 * test.
+	 */
+	private static long serverPackets() throws SQLException {
+		PreparedStatement stmt = monitor
+				.prepareStatement("SELECT num_reads FROM sys.dm_exec_connections WHERE session_id = ?");
+		stmt.setInt(1, session);
+		ResultSet rs = stmt.executeQuery();
+		long packets = rs.next() ? rs.getLong(1) : 0;
+		stmt.close();
+		monitor.commit();
+		return packets;
+	}
+
+	/**
+	 * Writes the baseline in sorted order to the checked-in file and its copy.
+	 */
+	private static void saveBaseline() throws IOException {
+		String[] keys = baseline.stringPropertyNames().toArray(new String[0]);
+		Arrays.sort(keys);
+		for (Path file : BASELINE_FILES) {
+			if (file.getParent() != null && !Files.isDirectory(file.getParent()))
+				continue;
+			try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+				out.write("# Performance baseline for TestPerformance, one line per operation and metric.\n");
+				out.write("# Record again with -Dperf.record=true after an intended change.\n");
+				for (String key : keys)
+					out.write(key + "=" + baseline.getProperty(key) + "\n");
+			}
+		}
+		System.out.println("Saved baseline to " + Arrays.toString(BASELINE_FILES) + ".");
+	}
+}
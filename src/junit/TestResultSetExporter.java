@@ -0,0 +1,148 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+import org.junit.jupiter.api.Test;
+
+import trans.ResultSetExporter;
+
+/**
+ * Tests the CSV and binary output of ResultSetExporter against an in-memory
+ * result set. No database is needed.
+ */
+public class TestResultSetExporter {
+	/**
+	 * Column names of the test rows
+	 */
+	private static final String[] NAMES = { "id", "total", "name" };
+
+	/**
+	 * JDBC types of the test rows
+	 */
+	private static final int[] TYPES = { Types.INTEGER, Types.BIGINT, Types.VARCHAR };
+
+	/**
+	 * Tests CSV quoting, NULLs, extreme numbers and UTF-8.
+	 */
+	@Test
+	public void testCsv() throws Exception {
+		Object[][] rows = { { 1, 10L, "Plain" }, { -7, Long.MIN_VALUE, "Comma, \"quote\"" },
+				{ null, null, null }, { Integer.MAX_VALUE, 0L, "Zo\u00eb \ud83d\ude00" } };
+		Path file = Files.createTempFile("export", ".csv");
+		try {
+			assertEquals(4, ResultSetExporter.export(resultSet(rows), file, ResultSetExporter.Format.CSV));
+			assertEquals("id,total,name\n1,10,Plain\n-7,-9223372036854775808,\"Comma, \"\"quote\"\"\"\n,,\n"
+					+ "2147483647,0,Zo\u00eb \ud83d\ude00\n",
+					new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Tests the binary format over more rows than fit in one row group.
+	 */
+	@Test
+	public void testBinary() throws Exception {
+		Object[][] rows = new Object[5000][];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = new Object[] { i % 3 == 0 ? null : i, (long) i << 33, i % 5 == 0 ? null : "n" + i };
+		Path file = Files.createTempFile("export", ".bin");
+		try {
+			assertEquals(rows.length, ResultSetExporter.export(resultSet(rows), file, ResultSetExporter.Format.BINARY));
+
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(ResultSetExporter.MAGIC, in.getInt());
+			assertEquals(3, in.getInt());
+			byte[] types = { ResultSetExporter.TYPE_INT, ResultSetExporter.TYPE_LONG, ResultSetExporter.TYPE_STRING };
+			for (int c = 0; c < 3; c++) {
+				assertEquals(types[c], in.get());
+				assertEquals(NAMES[c], string(in));
+			}
+
+			int row = 0;
+			for (int groupRows = in.getInt(); groupRows > 0; groupRows = in.getInt()) {
+				for (int c = 0; c < 3; c++) {
+					byte[] nulls = new byte[(groupRows + 7) / 8];
+					in.get(nulls);
+					for (int r = 0; r < groupRows; r++) {
+						boolean isNull = (nulls[r >>> 3] & (1 << (r & 7))) != 0;
+						Object value = c == 0 ? (Object) in.getInt() : c == 1 ? (Object) in.getLong() : string(in);
+						Object expected = rows[row + r][c];
+						assertEquals(expected == null, isNull);
+						if (expected != null)
+							assertEquals(expected, value);
+					}
+				}
+				row += groupRows;
+			}
+			assertEquals(rows.length, row);
+			assertEquals(0, in.remaining());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Reads a length-prefixed UTF-8 string.
+	 */
+	private static String string(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a forward-only result set over rows in memory with the NAMES and
+	 * TYPES columns.
+	 */
+	private static ResultSet resultSet(Object[][] rows) {
+		ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(),
+				new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getColumnCount":
+						return NAMES.length;
+					case "getColumnName":
+						return NAMES[(Integer) args[0] - 1];
+					case "getColumnType":
+						return TYPES[(Integer) args[0] - 1];
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		int[] row = { -1 };
+		boolean[] wasNull = { false };
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getMetaData":
+						return meta;
+					case "next":
+						return ++row[0] < rows.length;
+					case "wasNull":
+						return wasNull[0];
+					case "getInt":
+					case "getLong":
+					case "getString":
+						Object value = rows[row[0]][(Integer) args[0] - 1];
+						wasNull[0] = value == null;
+						if (method.getName().equals("getString"))
+							return value;
+						long number = value == null ? 0 : ((Number) value).longValue();
+						return method.getName().equals("getInt") ? (Object) (int) number : (Object) number;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -1,9 +1,25 @@
 package junit;
 
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
@@ -11,7 +27,16 @@ import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.TestMethodOrder;
 
+import trans.BalanceChange;
+import trans.BulkBalanceJob;
+import trans.ConnectionPool;
 import trans.DatabaseTransactions;
+import trans.Deadline;
+import trans.Interleaving;
+import trans.IsolationPools;
+import trans.JdbcProfiler;
+import trans.LockDiagnostics;
+import trans.OperationTimeoutException;
 
 /**
  * Tests database transactions and isolation levels using Microsoft SQL Server.
@@ -24,7 +49,17 @@ public class TestTransactions {
 	private static DatabaseTransactions dt;
 
 	/**
-	 * Requests a connection to the server.
+	 * Resets the bank data between tests
+	 */
+	private static Fixture fixture;
+
+	/**
+	 * Connection used by interleavings to detect blocked steps
+	 */
+	private static Connection monitor;
+
+	/**
+	 * Requests a connection to the server and loads the seed data.
 	 * 
 	 * @throws Exception
 	 *                   if an error occurs
@@ -33,6 +68,9 @@ public class TestTransactions {
 	public static void init() throws Exception {
 		dt = new DatabaseTransactions();
 		dt.connect();
+		monitor = DatabaseTransactions.openConnection();
+		fixture = new Fixture(dt);
+		fixture.build();
 	}
 
 	/**
@@ -41,7 +79,7 @@ public class TestTransactions {
 	@Test
 	@Order(1)
 	public void testReadBalanceValidId() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		String response = dt.queryBalance(5);
 
@@ -54,7 +92,7 @@ public class TestTransactions {
 	@Test
 	@Order(2)
 	public void testReadBalanceInvalidId() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		String response = dt.queryBalance(150);
 
@@ -67,7 +105,7 @@ public class TestTransactions {
 	@Test
 	@Order(3)
 	public void testTransferValid() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		String response = dt.doTransfer(100, 7, 107);
 
@@ -84,7 +122,7 @@ public class TestTransactions {
 	@Test
 	@Order(4)
 	public void testTransferInvalidAmount() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		String response = dt.doTransfer(1000, 8, 108);
 
@@ -98,7 +136,7 @@ public class TestTransactions {
 	@Test
 	@Order(5)
 	public void testTransferInvalidAccountsDifferentCustomer() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		String response = dt.doTransfer(1000, 17, 119);
 
@@ -112,7 +150,7 @@ public class TestTransactions {
 	@Test
 	@Order(6)
 	public void testIsolationLevel1() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		Connection con1 = dt.connect();
 		Connection con2 = dt.connect();
@@ -134,20 +172,19 @@ public class TestTransactions {
 		 * - Expected output: First value: 2578180 Second value: 5577160
 		 * - Read query 2 must not be blocked waiting on update.
 		 */
-		StringBuffer firstCommitted = new StringBuffer();
-		GetTotals gt = new GetTotals(con1, firstCommitted);
+		// Drive the sequence with an interleaving instead of timed pauses
+		Interleaving il = interleave(con1, con2, "reader:read 1", "writer:update", "reader:read 2",
+				"reader:commit read", "writer:commit update");
+
+		GetTotals gt = new GetTotals(con1);
 		Thread totalsThread = new Thread(gt);
 		totalsThread.start();
 
-		// Perform a pause to help guarantee first query is performed before update
-		Thread.sleep(500);
-
 		dt.updateAccountBalance(con2, 115, 3000000, 3000);
-		if (firstCommitted.length() == 0)
-			firstCommitted.append("UPDATE"); // Update connection, con2, committed first
 
 		// Wait for threads to complete before looking at their output
 		totalsThread.join();
+		dt.setInterleaving(null);
 
 		// Check for correct values
 		int[] values = gt.values;
@@ -155,8 +192,9 @@ public class TestTransactions {
 		assertEquals(2578180, values[0]);
 		assertEquals(5577160, values[1]);
 
-		// Check who was committed first
-		assertEquals("QUERY", firstCommitted.toString());
+		// Check who was committed first and which steps were blocked
+		assertEquals("QUERY", firstCommitted(il, "commit update"));
+		assertFalse(il.wasBlocked("reader", "read 2"));
 	}
 
 	/**
@@ -165,7 +203,7 @@ public class TestTransactions {
 	@Test
 	@Order(7)
 	public void testIsolationLevel2() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		Connection con1 = dt.connect();
 		Connection con2 = dt.connect();
@@ -188,20 +226,19 @@ public class TestTransactions {
 		 * - Read query 2 must not be blocked waiting on update.
 		 * - Update must not be blocked on read.
 		 */
-		StringBuffer firstCommitted = new StringBuffer();
-		GetTotals gt = new GetTotals(con1, firstCommitted);
+		// Drive the sequence with an interleaving instead of timed pauses
+		Interleaving il = interleave(con1, con2, "reader:read 1", "writer:update", "writer:commit update",
+				"reader:read 2", "reader:commit read");
+
+		GetTotals gt = new GetTotals(con1);
 		Thread totalsThread = new Thread(gt);
 		totalsThread.start();
 
-		// Perform a pause to help guarantee first query is performed before update
-		Thread.sleep(500);
-
 		dt.updateAccountBalance(con2, 115, 3000000, 10);
-		if (firstCommitted.length() == 0)
-			firstCommitted.append("UPDATE"); // Update connection, con2, committed first
 
 		// Wait for threads to complete before looking at their output
 		totalsThread.join();
+		dt.setInterleaving(null);
 
 		// Check for correct values
 		int[] values = gt.values;
@@ -209,8 +246,10 @@ public class TestTransactions {
 		assertEquals(2578180, values[0]);
 		assertEquals(2578180, values[1]);
 
-		// Check who was committed first
-		assertEquals("UPDATE", firstCommitted.toString());
+		// Check who was committed first and which steps were blocked
+		assertEquals("UPDATE", firstCommitted(il, "commit update"));
+		assertFalse(il.wasBlocked("reader", "read 2"));
+		assertFalse(il.wasBlocked("writer", "update"));
 	}
 
 	/**
@@ -219,7 +258,7 @@ public class TestTransactions {
 	@Test
 	@Order(8)
 	public void testIsolationLevel3() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		Connection con1 = dt.connect();
 		Connection con2 = dt.connect();
@@ -242,20 +281,19 @@ public class TestTransactions {
 		 * - Read query 2 must not be blocked waiting on update.
 		 * - Update is not blocked waiting for read.
 		 */
-		StringBuffer firstCommitted = new StringBuffer();
-		GetTotals gt = new GetTotals(con1, firstCommitted);
+		// Drive the sequence with an interleaving instead of timed pauses
+		Interleaving il = interleave(con1, con2, "reader:read 1", "writer:update", "writer:commit update",
+				"reader:read 2", "reader:commit read");
+
+		GetTotals gt = new GetTotals(con1);
 		Thread totalsThread = new Thread(gt);
 		totalsThread.start();
 
-		// Perform a pause to help guarantee first query is performed before update
-		Thread.sleep(500);
-
 		dt.updateAccountBalance(con2, 115, 3000000, 10);
-		if (firstCommitted.length() == 0)
-			firstCommitted.append("UPDATE"); // Update connection, con2, committed first
 
 		// Wait for threads to complete before looking at their output
 		totalsThread.join();
+		dt.setInterleaving(null);
 
 		// Check for correct values
 		int[] values = gt.values;
@@ -263,8 +301,10 @@ public class TestTransactions {
 		assertEquals(2578180, values[0]);
 		assertEquals(5577160, values[1]);
 
-		// Check who was committed first
-		assertEquals("UPDATE", firstCommitted.toString());
+		// Check who was committed first and which steps were blocked
+		assertEquals("UPDATE", firstCommitted(il, "commit update"));
+		assertFalse(il.wasBlocked("reader", "read 2"));
+		assertFalse(il.wasBlocked("writer", "update"));
 	}
 
 	/**
@@ -273,7 +313,7 @@ public class TestTransactions {
 	@Test
 	@Order(9)
 	public void testIsolationLevel4() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		Connection con1 = dt.connect();
 		Connection con2 = dt.connect();
@@ -296,20 +336,19 @@ public class TestTransactions {
 		 * - Read query 2 must not be blocked waiting on update.
 		 * - Update IS blocked waiting for read.
 		 */
-		StringBuffer firstCommitted = new StringBuffer();
-		GetTotals gt = new GetTotals(con1, firstCommitted);
+		// Drive the sequence with an interleaving instead of timed pauses
+		Interleaving il = interleave(con1, con2, "reader:read 1", "writer:update", "writer:commit update",
+				"reader:read 2", "reader:commit read");
+
+		GetTotals gt = new GetTotals(con1);
 		Thread totalsThread = new Thread(gt);
 		totalsThread.start();
 
-		// Perform a pause to help guarantee first query is performed before update
-		Thread.sleep(500);
-
 		dt.updateAccountBalance(con2, 115, 3000000, 10);
-		if (firstCommitted.length() == 0)
-			firstCommitted.append("UPDATE"); // Update connection, con2, committed first
 
 		// Wait for threads to complete before looking at their output
 		totalsThread.join();
+		dt.setInterleaving(null);
 
 		// Check for correct values
 		int[] values = gt.values;
@@ -317,8 +356,10 @@ public class TestTransactions {
 		assertEquals(2578180, values[0]);
 		assertEquals(2578180, values[1]);
 
-		// Check who was committed first
-		assertEquals("QUERY", firstCommitted.toString());
+		// Check who was committed first and which steps were blocked
+		assertEquals("QUERY", firstCommitted(il, "commit update"));
+		assertFalse(il.wasBlocked("reader", "read 2"));
+		assertTrue(il.wasBlocked("writer", "update"));
 	}
 
 	/**
@@ -327,7 +368,7 @@ public class TestTransactions {
 	@Test
 	@Order(10)
 	public void testIsolationLevel5() throws Exception {
-		dt.load();
+		fixture.reset();
 
 		Connection con1 = dt.connect();
 		Connection con2 = dt.connect();
@@ -349,19 +390,20 @@ public class TestTransactions {
 		 * - Read query 2 must not be blocked waiting on update.
 		 * - Update IS blocked waiting for read.
 		 */
-		StringBuffer firstCommitted = new StringBuffer();
-		GetTotals gt = new GetTotals(con1, firstCommitted);
+		// Drive the sequence with an interleaving instead of timed pauses
+		Interleaving il = interleave(con1, con2, "reader:read 1", "writer:insert", "writer:commit insert",
+				"reader:read 2", "reader:commit read");
+
+		GetTotals gt = new GetTotals(con1);
 		Thread totalsThread = new Thread(gt);
 		totalsThread.start();
 
 		// Create an account
-		Thread.sleep(250);
 		dt.createAccount(con2, 10, 1, 25, 9000000);
-		if (firstCommitted.length() == 0)
-			firstCommitted.append("UPDATE"); // Update connection, con2, committed first
 
 		// Wait for threads to complete before looking at their output
 		totalsThread.join();
+		dt.setInterleaving(null);
 
 		// Check for correct values
 		int[] values = gt.values;
@@ -369,8 +411,505 @@ public class TestTransactions {
 		assertEquals(2578180, values[0]);
 		assertEquals(2578180, values[1]);
 
-		// Check who was committed first
-		assertEquals("QUERY", firstCommitted.toString());
+		// Check who was committed first and which steps were blocked
+		assertEquals("QUERY", firstCommitted(il, "commit insert"));
+		assertFalse(il.wasBlocked("reader", "read 2"));
+		assertTrue(il.wasBlocked("writer", "insert"));
+	}
+
+	/**
+	 * Tests that retrying a transfer with the same request id returns the original
+	 * outcome without transferring twice.
+	 */
+	@Test
+	@Order(11)
+	public void testTransferDuplicateRequest() throws Exception {
+		fixture.reset();
+
+		assertEquals("Transferred 100 from account 7 to 107", dt.doTransfer(100, 7, 107, "req-1"));
+		assertEquals("Transferred 100 from account 7 to 107", dt.doTransfer(100, 7, 107, "req-1"));
+
+		// Verify transfer was performed once
+		assertEquals("Balance for account 7: 1000", dt.queryBalance(7));
+		assertEquals("Balance for account 107: 1200", dt.queryBalance(107));
+
+		// A failed request keeps failing with its original error
+		assertEquals("java.sql.SQLException: Transfer failed because of insufficient balance.",
+				dt.doTransfer(1000, 8, 108, "req-2"));
+		assertEquals("java.sql.SQLException: Transfer failed because of insufficient balance.",
+				dt.doTransfer(1000, 8, 108, "req-2"));
+
+		// A request id that does not fit the dedup table is rejected before transferring
+		assertEquals("java.sql.SQLException: Transfer request id must have 1 to 64 characters.",
+				dt.doTransfer(100, 7, 107, "r".repeat(65)));
+		assertEquals("Balance for account 7: 1000", dt.queryBalance(7));
+
+		// Purging keeps ids inside the window
+		assertEquals(0, dt.purgeTransferRequests(3600));
+		assertEquals("Transferred 100 from account 7 to 107", dt.doTransfer(100, 7, 107, "req-1"));
+		assertEquals("Balance for account 7: 1000", dt.queryBalance(7));
+	}
+
+	/**
+	 * Tests that a read blocked by an uncommitted update fails at its deadline and
+	 * that a tight deadline can instead read the last committed value under
+	 * SNAPSHOT isolation.
+	 */
+	@Test
+	@Order(12)
+	public void testReadBalanceDeadline() throws Exception {
+		fixture.reset();
+
+		Connection con2 = dt.connect();
+		dt.connect(); // Reads use a connection other than the one holding the update lock
+
+		Thread updateThread = new Thread(() -> {
+			try {
+				dt.updateAccountBalance(con2, 115, 3000000, 3000);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		});
+		updateThread.start();
+		Thread.sleep(500);
+
+		long start = System.currentTimeMillis();
+		assertThrows(OperationTimeoutException.class, () -> dt.readBalance(115, Deadline.in(500)));
+		assertTrue(System.currentTimeMillis() - start < 1500);
+
+		dt.setSnapshotDowngradeMillis(1000);
+		try {
+			assertEquals(1020, dt.readBalance(115, Deadline.in(500)));
+		} finally {
+			dt.setSnapshotDowngradeMillis(0);
+		}
+
+		updateThread.join();
+	}
+
+	/**
+	 * Tests that a bulk interest job adjusts every account of a type once, even
+	 * when run again or overlapping another run.
+	 */
+	@Test
+	@Order(13)
+	public void testBulkInterest() throws Exception {
+		fixture.reset();
+
+		assertEquals(20, dt.applyInterest("interest-test", 1, 100));
+		assertEquals(0, dt.applyInterest("interest-test", 1, 100));
+
+		assertEquals("Balance for account 1: 101", dt.queryBalance(1));
+		assertEquals("Balance for account 20: 1010000", dt.queryBalance(20));
+		assertEquals("Balance for account 101: 10000", dt.queryBalance(101));
+
+		// Overlapping runs of one job take turns by chunk and charge every account once
+		long[] adjusted = new long[2];
+		Thread[] runs = new Thread[2];
+		for (int i = 0; i < runs.length; i++) {
+			int run = i;
+			runs[i] = new Thread(() -> {
+				try (Connection con = DatabaseTransactions.openConnection()) {
+					BulkBalanceJob job = new BulkBalanceJob(con, "fee-test", 2, 0, -10);
+					job.setChunkSize(10);
+					adjusted[run] = job.run();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			});
+			runs[i].start();
+		}
+		for (Thread t : runs)
+			t.join();
+		assertEquals(20, adjusted[0] + adjusted[1]);
+		assertEquals("Balance for account 101: 9990", dt.queryBalance(101));
+		assertEquals("Balance for account 120: 999990", dt.queryBalance(120));
+
+		// Waiting for a checkpoint held past the lock timeout does not shrink the chunks
+		try (Connection holder = DatabaseTransactions.openConnection();
+				Connection con = DatabaseTransactions.openConnection()) {
+			Statement stmt = holder.createStatement();
+			stmt.executeUpdate("INSERT INTO BalanceJobCheckpoint (jobName, lastAcctId) VALUES ('busy-test', "
+					+ Integer.MIN_VALUE + ")");
+			holder.commit();
+			stmt.executeQuery("SELECT lastAcctId FROM BalanceJobCheckpoint WITH (UPDLOCK) WHERE jobName = 'busy-test'");
+			Thread release = new Thread(() -> {
+				try {
+					Thread.sleep(500);
+					holder.commit();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			release.start();
+			BulkBalanceJob job = new BulkBalanceJob(con, "busy-test", 2, 0, -10);
+			job.setChunkSize(40);
+			job.setLockTimeoutMillis(50);
+			try {
+				assertEquals(20, job.run());
+			} finally {
+				release.join();
+			}
+			assertTrue(job.getChunkSize() >= 40);
+		}
+		assertEquals("Balance for account 101: 9980", dt.queryBalance(101));
+	}
+
+	/**
+	 * Tests that a customer subscription receives the balances committed by a
+	 * transfer and a bulk fee job and nothing for other customers.
+	 */
+	@Test
+	@Order(14)
+	public void testBalanceSubscription() throws Exception {
+		fixture.reset();
+
+		BlockingQueue<BalanceChange> changes = new LinkedBlockingQueue<>();
+		Flow.Subscription[] subscription = new Flow.Subscription[1];
+		dt.getBalanceFeed().subscribeCustomer(4, new Flow.Subscriber<BalanceChange>() {
+			public void onSubscribe(Flow.Subscription s) {
+				subscription[0] = s;
+				s.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(BalanceChange change) {
+				changes.add(change);
+			}
+
+			public void onError(Throwable e) {
+				e.printStackTrace();
+			}
+
+			public void onComplete() {
+			}
+		});
+		try {
+			assertEquals("Transferred 100 from account 7 to 107", dt.doTransfer(100, 7, 107));
+			assertEquals("Balance for account 7: 1000", changes.poll(5, TimeUnit.SECONDS).toString());
+			assertEquals("Balance for account 107: 1200", changes.poll(5, TimeUnit.SECONDS).toString());
+
+			// Customer 1 owns accounts 4 and 14
+			assertEquals("Transferred 10 from account 4 to 14", dt.doTransfer(10, 4, 14));
+			assertEquals(null, changes.poll(200, TimeUnit.MILLISECONDS));
+
+			// A bulk fee publishes the checking accounts of customer 4 as its chunk commits
+			assertEquals(20, dt.applyFee("fee-subscription", 2, 10));
+			Set<String> fees = new TreeSet<>();
+			fees.add(changes.poll(5, TimeUnit.SECONDS).toString());
+			fees.add(changes.poll(5, TimeUnit.SECONDS).toString());
+			assertEquals("[Balance for account 107: 1190, Balance for account 108: 90]", fees.toString());
+			assertEquals(null, changes.poll(200, TimeUnit.MILLISECONDS));
+		} finally {
+			subscription[0].cancel();
+		}
+	}
+
+	/**
+	 * Tests per-call isolation levels served from isolation pools that rebalance
+	 * when there are fewer connections than levels in use, and that a borrow
+	 * waits no longer than the maximum wait.
+	 */
+	@Test
+	@Order(15)
+	public void testIsolationPools() throws Exception {
+		fixture.reset();
+
+		try (IsolationPools pools = new IsolationPools(2)) {
+			dt.setIsolationPools(pools);
+
+			assertEquals(100, dt.readBalance(5, Connection.TRANSACTION_SERIALIZABLE));
+			dt.transferAt(100, 7, 107, Connection.TRANSACTION_REPEATABLE_READ);
+			assertEquals(1000, dt.readBalance(7, DatabaseTransactions.TRANSACTION_SNAPSHOT));
+			assertEquals(1200, dt.readBalance(107, DatabaseTransactions.TRANSACTION_SNAPSHOT));
+
+			// Three levels share two connections, so one had to change level
+			assertTrue(pools.getConversions() > 0);
+			assertEquals(2, pools.getAssigned(Connection.TRANSACTION_SERIALIZABLE)
+					+ pools.getAssigned(Connection.TRANSACTION_REPEATABLE_READ)
+					+ pools.getAssigned(DatabaseTransactions.TRANSACTION_SNAPSHOT));
+		} finally {
+			dt.setIsolationPools(null);
+		}
+
+		// A borrow gives up after the maximum wait
+		try (IsolationPools pools = new IsolationPools(1)) {
+			pools.setMaxWaitMillis(100);
+			Connection con = pools.borrow(Connection.TRANSACTION_READ_COMMITTED);
+			long start = System.currentTimeMillis();
+			assertThrows(SQLException.class, () -> pools.borrow(Connection.TRANSACTION_READ_COMMITTED));
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			pools.release(con);
+			pools.release(pools.borrow(Connection.TRANSACTION_READ_COMMITTED));
+		}
+	}
+
+	/**
+	 * Tests that the JDBC profiler attributes the calls of a transfer to it and
+	 * that a transfer commits once.
+	 */
+	@Test
+	@Order(16)
+	public void testJdbcProfiler() throws Exception {
+		fixture.reset();
+
+		JdbcProfiler profiler = new JdbcProfiler();
+		dt.setJdbcProfiler(profiler);
+		try {
+			dt.connect();
+			assertEquals("Transferred 100 from account 7 to 107", dt.doTransfer(100, 7, 107));
+
+			JdbcProfiler.JdbcStats stats = profiler.getBreakdown().get("transfer");
+			System.out.println("transfer: " + stats);
+			assertEquals(1, stats.calls);
+			assertEquals(1, stats.count(JdbcProfiler.Kind.COMMIT));
+			assertEquals(0, stats.count(JdbcProfiler.Kind.ROLLBACK));
+			assertTrue(stats.count(JdbcProfiler.Kind.EXECUTE) >= 2);
+		} finally {
+			dt.setJdbcProfiler(null);
+			dt.connect();
+		}
+	}
+
+	/**
+	 * Tests that getTotals leaves time for its second query under a deadline and
+	 * fails at its deadline when blocked by an uncommitted update.
+	 */
+	@Test
+	@Order(17)
+	public void testGetTotalsDeadline() throws Exception {
+		fixture.reset();
+
+		Connection con1 = dt.connect();
+		Connection con2 = dt.connect();
+
+		long start = System.currentTimeMillis();
+		int[] values = dt.getTotals(con1, Deadline.in(1000));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(2578180, values[0]);
+		assertEquals(2578180, values[1]);
+
+		Thread updateThread = new Thread(() -> {
+			try {
+				dt.updateAccountBalance(con2, 115, 3000000, 3000);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		});
+		updateThread.start();
+		Thread.sleep(500);
+
+		start = System.currentTimeMillis();
+		assertThrows(OperationTimeoutException.class, () -> dt.getTotals(con1, Deadline.in(500)));
+		assertTrue(System.currentTimeMillis() - start < 1500);
+
+		updateThread.join();
+	}
+
+	/**
+	 * Tests that parallel totals match the serial total for any number of
+	 * partitions, and that totals taken while transfers commit are off by at
+	 * most the one transfer that partitions may see on one side only.
+	 */
+	@Test
+	@Order(18)
+	public void testParallelTotal() throws Exception {
+		fixture.reset();
+
+		dt.connect();
+		try (ConnectionPool pool = new ConnectionPool(4, Connection.TRANSACTION_READ_COMMITTED)) {
+			for (int partitions : new int[] { 1, 3, 4, 500 })
+				assertEquals(2578180, dt.getTotalParallel(pool, partitions, true));
+
+			// Accounts 7 and 107 are in different partitions
+			Thread transferThread = new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					dt.doTransfer(1, 7, 107);
+					dt.doTransfer(1, 107, 7);
+				}
+			});
+			transferThread.start();
+			try {
+				while (transferThread.isAlive())
+					assertTrue(Math.abs(dt.getTotalParallel(pool, 4, false) - 2578180) <= 1);
+			} finally {
+				transferThread.join();
+			}
+			assertEquals(2578180, dt.getTotalParallel(pool, 4, true));
+		}
+	}
+
+	/**
+	 * Tests that a read blocked by an uncommitted update is reported with its
+	 * blocking chain and lock modes, and that session ids are looked up once per
+	 * connection.
+	 */
+	@Test
+	@Order(19)
+	public void testLockDiagnostics() throws Exception {
+		fixture.reset();
+
+		JdbcProfiler profiler = new JdbcProfiler();
+		dt.setJdbcProfiler(profiler);
+		Connection con2 = dt.connect();
+		dt.connect(); // Reads use a connection other than the one holding the update lock
+		Connection monitor = DatabaseTransactions.openConnection();
+		try (LockDiagnostics diagnostics = new LockDiagnostics(monitor, 20)) {
+			dt.setLockDiagnostics(diagnostics);
+
+			// The session id lookup runs outside the operation's profiler scope
+			profiler.reset();
+			for (int i = 0; i < 3; i++)
+				assertEquals(100, dt.readBalance(5));
+			assertEquals(1, profiler.getBreakdown().get("other").count(JdbcProfiler.Kind.EXECUTE));
+
+			Thread updateThread = new Thread(() -> {
+				try {
+					dt.updateAccountBalance(con2, 115, 3000000, 1000);
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			});
+			updateThread.start();
+			Thread.sleep(300);
+			assertEquals(3000000, dt.readBalance(115));
+			updateThread.join();
+
+			System.out.println(diagnostics);
+			LockDiagnostics.LockWaitStats stats = diagnostics.getBreakdown().get("readBalance");
+			assertEquals(4, stats.calls);
+			assertEquals(1, stats.blockedCalls);
+			assertTrue(stats.maxWaitMillis > 0);
+			assertTrue(stats.waitMillisByMode.containsKey("S"));
+			assertEquals(0, diagnostics.getBreakdown().get("updateAccountBalance").blockedCalls);
+
+			LockDiagnostics.Sample sample = diagnostics.getSamples().get(0);
+			assertEquals("readBalance", sample.operation);
+			assertEquals(2, sample.chain.size());
+			assertTrue(sample.headHeldModes.contains("X KEY"));
+		} finally {
+			dt.setLockDiagnostics(null);
+			dt.setJdbcProfiler(null);
+			dt.connect();
+			monitor.close();
+		}
+	}
+
+	/**
+	 * Tests that statements list every account of a customer with its type and
+	 * the customer's total.
+	 */
+	@Test
+	@Order(20)
+	public void testGenerateStatements() throws Exception {
+		fixture.reset();
+
+		Path dir = Files.createTempDirectory("statements");
+		try (ConnectionPool pool = new ConnectionPool(1, Connection.TRANSACTION_READ_COMMITTED)) {
+			assertEquals(10, dt.generateStatements(pool, dir, 4));
+			List<String> lines = Files.readAllLines(dir.resolve("statement-4.txt"), StandardCharsets.UTF_8);
+			assertTrue(lines.get(0).startsWith("Statement for customer 4 Craig Johnson as of "));
+			assertEquals(Arrays.asList("Account 7 (savings): 1100", "Account 8 (savings): 100",
+					"Account 107 (checking): 1100", "Account 108 (checking): 100", "Total: 2400"),
+					lines.subList(1, lines.size()));
+		} finally {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files)
+					Files.delete(file);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Tests that transfers are only rejected for ownership confirmed in the
+	 * database, that a stale ownership index does not reject a valid transfer and
+	 * that a repeated rejected request makes no round trip.
+	 */
+	@Test
+	@Order(21)
+	public void testTransferOwnership() throws Exception {
+		fixture.reset();
+
+		JdbcProfiler profiler = new JdbcProfiler();
+		dt.setJdbcProfiler(profiler);
+		dt.connect();
+		Connection other = DatabaseTransactions.openConnection();
+		try {
+			assertEquals("Transferred 1 from account 7 to 107", dt.doTransfer(1, 7, 107));
+
+			// A mismatch in the index is confirmed by reading both owners, nothing is updated
+			profiler.reset();
+			assertEquals("java.sql.SQLException: Transfer failed because accounts do not belong to same customer.",
+					dt.doTransfer(1, 7, 4));
+			assertEquals(2, profiler.getBreakdown().get("transfer").count(JdbcProfiler.Kind.EXECUTE));
+
+			// The recorded rejection is replayed from memory
+			assertEquals("java.sql.SQLException: Transfer failed because accounts do not belong to same customer.",
+					dt.doTransfer(1, 7, 4, "req-owner"));
+			profiler.reset();
+			assertEquals("java.sql.SQLException: Transfer failed because accounts do not belong to same customer.",
+					dt.doTransfer(1, 7, 4, "req-owner"));
+			assertTrue(profiler.getBreakdown().isEmpty());
+
+			// Account 4 changes owner without the index knowing
+			Statement stmt = other.createStatement();
+			stmt.executeUpdate("UPDATE Account SET cid = 4 WHERE acctId = 4");
+			other.commit();
+			assertEquals("Transferred 1 from account 7 to 4", dt.doTransfer(1, 7, 4, "req-stale"));
+			assertEquals("Transferred 1 from account 7 to 4", dt.doTransfer(1, 7, 4, "req-stale"));
+			assertEquals("Balance for account 4: 101", dt.queryBalance(4));
+
+			// An account without an owner belongs to no customer, also when loaded into the index
+			stmt.executeUpdate("UPDATE Account SET cid = NULL WHERE acctId = 4");
+			other.commit();
+			assertEquals("java.sql.SQLException: Transfer failed because accounts do not belong to same customer.",
+					dt.doTransfer(1, 7, 4));
+			dt.resetCaches();
+			assertEquals("java.sql.SQLException: Transfer failed because accounts do not belong to same customer.",
+					dt.doTransfer(1, 7, 4));
+			assertEquals("Balance for account 4: 101", dt.queryBalance(4));
+		} finally {
+			dt.setJdbcProfiler(null);
+			dt.connect();
+			other.close();
+		}
+	}
+
+	/**
+	 * Creates an interleaving of a reader on con1 running getTotals and a writer on
+	 * con2 and installs it.
+	 * 
+	 * @param con1
+	 *              reader connection
+	 * @param con2
+	 *              writer connection
+	 * @param steps
+	 *              script as "actor:checkpoint"
+	 * @return
+	 *         installed interleaving
+	 */
+	private static Interleaving interleave(Connection con1, Connection con2, String... steps) throws SQLException {
+		Interleaving il = new Interleaving(monitor).actor("reader", con1).actor("writer", con2);
+		for (String step : steps) {
+			int colon = step.indexOf(':');
+			il.step(step.substring(0, colon), step.substring(colon + 1));
+		}
+		dt.setInterleaving(il);
+		return il;
+	}
+
+	/**
+	 * Returns which connection committed first.
+	 * 
+	 * @param il
+	 *                     interleaving that ran
+	 * @param writerCommit
+	 *                     commit checkpoint of the writer
+	 * @return
+	 *         "QUERY" if the reader committed first, "UPDATE" otherwise
+	 */
+	private static String firstCommitted(Interleaving il, String writerCommit) {
+		return il.completedBefore("reader", "commit read", "writer", writerCommit) ? "QUERY" : "UPDATE";
 	}
 
 	/**
@@ -382,11 +921,6 @@ public class TestTransactions {
 		 */
 		private Connection con;
 
-		/**
-		 * Flag for determining commit order
-		 */
-		private StringBuffer firstCommitted;
-
 		/**
 		 * Account balances returned
 		 */
@@ -396,21 +930,16 @@ public class TestTransactions {
 		 * Constructor.
 		 * 
 		 * @param con
-		 *                       JDBC connection
-		 * @param firstCommitted
-		 *                       for determining commit order
+		 *            JDBC connection
 		 */
-		public GetTotals(Connection con, StringBuffer firstCommitted) {
+		public GetTotals(Connection con) {
 			this.con = con;
-			this.firstCommitted = firstCommitted;
 		}
 
 		@Override
 		public void run() {
 			try {
 				values = dt.getTotals(con);
-				if (firstCommitted.length() == 0)
-					firstCommitted.append("QUERY");
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,461 @@
+package trans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Consistent copy of the Account table stored column by column in off-heap int
+ * buffers. The copy is read in a single SNAPSHOT transaction so it takes no
+ * shared locks and does not block transfers. Analytics then run over the
+ * columns in memory with simple loops over primitive values. A snapshot can be
+ * written to a file and mapped back into memory later.
+ *
+ * Query methods take an optional selection: an array of row numbers produced by
+ * filter(). A null selection means all rows.
+ *
+ * Columns hold plain ints, so a snapshot cannot be taken of a table with NULL
+ * cid, amount or accType values.
+ */
+public class AccountSnapshot {
+	/**
+	 * Column number of acctId
+	 */
+	public static final int ACCT_ID = 0;
+
+	/**
+	 * Column number of cid
+	 */
+	public static final int CID = 1;
+
+	/**
+	 * Column number of amount
+	 */
+	public static final int AMOUNT = 2;
+
+	/**
+	 * Column number of accType
+	 */
+	public static final int ACC_TYPE = 3;
+
+	/**
+	 * Number of columns
+	 */
+	private static final int COLUMNS = 4;
+
+	/**
+	 * Column names in column number order
+	 */
+	private static final String[] COLUMN_NAMES = { "acctId", "cid", "amount", "accType" };
+
+	/**
+	 * Marks the start of a snapshot file
+	 */
+	private static final int MAGIC = 0x41434354;
+
+	/**
+	 * Largest number of rows, so that a column fits in one buffer
+	 */
+	public static final int MAX_ROWS = Integer.MAX_VALUE / 4;
+
+	/**
+	 * Number of rows
+	 */
+	private final int rows;
+
+	/**
+	 * Column bytes in native order, one buffer per column
+	 */
+	private final ByteBuffer[] bytes;
+
+	/**
+	 * Column values, int views of the column bytes
+	 */
+	private final IntBuffer[] columns;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rows
+	 *              number of rows
+	 * @param bytes
+	 *              column bytes in native order
+	 */
+	private AccountSnapshot(int rows, ByteBuffer[] bytes) {
+		this.rows = rows;
+		this.bytes = bytes;
+		this.columns = new IntBuffer[COLUMNS];
+		for (int c = 0; c < COLUMNS; c++)
+			columns[c] = bytes[c].asIntBuffer();
+	}
+
+	/**
+	 * Allocates off-heap column buffers for a number of rows.
+	 */
+	private static ByteBuffer[] allocate(int rows) {
+		if (rows < 0 || rows > MAX_ROWS)
+			throw new IllegalArgumentException("A snapshot holds at most " + MAX_ROWS + " rows, not " + rows + ".");
+		ByteBuffer[] bytes = new ByteBuffer[COLUMNS];
+		for (int c = 0; c < COLUMNS; c++)
+			bytes[c] = ByteBuffer.allocateDirect(rows * 4).order(ByteOrder.nativeOrder());
+		return bytes;
+	}
+
+	/**
+	 * Builds a snapshot from rows already in memory.
+	 *
+	 * @param data
+	 *             rows of acctId, cid, amount and accType
+	 * @return
+	 *         snapshot of the rows
+	 */
+	public static AccountSnapshot of(int[][] data) {
+		ByteBuffer[] bytes = allocate(data.length);
+		for (int row = 0; row < data.length; row++)
+			for (int c = 0; c < COLUMNS; c++)
+				bytes[c].putInt(row * 4, data[row][c]);
+		return new AccountSnapshot(data.length, bytes);
+	}
+
+	/**
+	 * Reads the Account table under SNAPSHOT isolation into off-heap columns. The
+	 * isolation level of the connection is restored afterwards.
+	 *
+	 * @param con
+	 *            connection to use
+	 * @return
+	 *         snapshot of the Account table
+	 * @throws SQLException
+	 *                      if an error occurs or a column is NULL
+	 */
+	public static AccountSnapshot load(Connection con) throws SQLException {
+		int isolation = con.getTransactionIsolation();
+		con.setTransactionIsolation(DatabaseTransactions.TRANSACTION_SNAPSHOT);
+		try {
+			// Count and copy in the same transaction so both see the same snapshot
+			PreparedStatement stmt = con.prepareStatement("SELECT count(*) FROM Account");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			long count = rs.getLong(1);
+			stmt.close();
+			if (count > MAX_ROWS)
+				throw new SQLException("Account has " + count + " rows, a snapshot holds at most " + MAX_ROWS + ".");
+
+			ByteBuffer[] bytes = allocate((int) count);
+
+			stmt = con.prepareStatement("SELECT acctId, cid, amount, accType FROM Account ORDER BY acctId");
+			stmt.setFetchSize(1000);
+			rs = stmt.executeQuery();
+			int row = 0;
+			while (row < count && rs.next()) {
+				for (int c = 0; c < COLUMNS; c++) {
+					int value = rs.getInt(c + 1);
+					if (rs.wasNull())
+						throw new SQLException("Account " + rs.getInt(1) + " has a NULL " + COLUMN_NAMES[c]
+								+ " and cannot be snapshot.");
+					bytes[c].putInt(row * 4, value);
+				}
+				row++;
+			}
+			stmt.close();
+			con.commit();
+			System.out.println("Snapshot of " + row + " accounts loaded.");
+			return new AccountSnapshot(row, bytes);
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setTransactionIsolation(isolation);
+		}
+	}
+
+	/**
+	 * Writes the snapshot to a file. The column buffers are written as they are,
+	 * without copying.
+	 *
+	 * @param file
+	 *             file to write
+	 * @throws IOException
+	 *                     if an I/O error occurs
+	 */
+	public void writeTo(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(rows).flip();
+			while (header.hasRemaining())
+				channel.write(header);
+			for (int c = 0; c < COLUMNS; c++) {
+				ByteBuffer column = bytes[c].duplicate();
+				column.limit(rows * 4);
+				while (column.hasRemaining())
+					channel.write(column);
+			}
+		}
+	}
+
+	/**
+	 * Maps a snapshot file written by writeTo() into memory. Each column is
+	 * mapped on its own, so the file may be larger than one buffer.
+	 *
+	 * @param file
+	 *             file to map
+	 * @return
+	 *         snapshot backed by the mapped file
+	 * @throws IOException
+	 *                     if an I/O error occurs or the file is not a snapshot
+	 */
+	public static AccountSnapshot map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 8)
+				throw new IOException("File " + file + " is not an account snapshot.");
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+			header.order(ByteOrder.nativeOrder());
+			if (header.getInt(0) != MAGIC)
+				throw new IOException("File " + file + " is not an account snapshot.");
+			int rows = header.getInt(4);
+			if (rows < 0 || rows > MAX_ROWS)
+				throw new IOException("File " + file + " has an invalid row count " + rows + ".");
+			long columnBytes = (long) rows * 4;
+			if (size < 8 + columnBytes * COLUMNS)
+				throw new IOException("File " + file + " is truncated.");
+			ByteBuffer[] bytes = new ByteBuffer[COLUMNS];
+			for (int c = 0; c < COLUMNS; c++) {
+				bytes[c] = channel.map(FileChannel.MapMode.READ_ONLY, 8 + c * columnBytes, columnBytes)
+						.order(ByteOrder.nativeOrder());
+			}
+			return new AccountSnapshot(rows, bytes);
+		}
+	}
+
+	/**
+	 * Returns the number of rows.
+	 *
+	 * @return
+	 *         number of rows
+	 */
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * Returns a value.
+	 *
+	 * @param column
+	 *               column number
+	 * @param row
+	 *               row number
+	 * @return
+	 *         value
+	 */
+	public int get(int column, int row) {
+		return columns[column].get(row);
+	}
+
+	/**
+	 * Returns the rows whose value in a column satisfies a predicate.
+	 *
+	 * @param column
+	 *                  column number
+	 * @param predicate
+	 *                  condition on the column value
+	 * @param selection
+	 *                  rows to consider or null for all rows
+	 * @return
+	 *         selected row numbers in ascending order
+	 */
+	public int[] filter(int column, IntPredicate predicate, int[] selection) {
+		IntBuffer col = columns[column];
+		int n = selection == null ? rows : selection.length;
+		int[] out = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			int row = selection == null ? i : selection[i];
+			if (predicate.test(col.get(row)))
+				out[count++] = row;
+		}
+		return count == n ? out : Arrays.copyOf(out, count);
+	}
+
+	/**
+	 * Returns the rows whose value in a column equals a given value.
+	 *
+	 * @param column
+	 *                  column number
+	 * @param value
+	 *                  value to match
+	 * @param selection
+	 *                  rows to consider or null for all rows
+	 * @return
+	 *         selected row numbers in ascending order
+	 */
+	public int[] filterEquals(int column, int value, int[] selection) {
+		IntBuffer col = columns[column];
+		int n = selection == null ? rows : selection.length;
+		int[] out = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			int row = selection == null ? i : selection[i];
+			if (col.get(row) == value)
+				out[count++] = row;
+		}
+		return count == n ? out : Arrays.copyOf(out, count);
+	}
+
+	/**
+	 * Returns the sum of a column.
+	 *
+	 * @param column
+	 *                  column number
+	 * @param selection
+	 *                  rows to sum or null for all rows
+	 * @return
+	 *         sum
+	 */
+	public long sum(int column, int[] selection) {
+		IntBuffer col = columns[column];
+		long sum = 0;
+		if (selection == null) {
+			for (int i = 0; i < rows; i++)
+				sum += col.get(i);
+		} else {
+			for (int i = 0; i < selection.length; i++)
+				sum += col.get(selection[i]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the sum of a value column for each distinct value of a key column,
+	 * for example the total amount by accType or by cid.
+	 *
+	 * @param keyColumn
+	 *                    column to group by
+	 * @param valueColumn
+	 *                    column to sum
+	 * @param selection
+	 *                    rows to consider or null for all rows
+	 * @return
+	 *         sums by key in ascending key order
+	 */
+	public Map<Integer, Long> groupBySum(int keyColumn, int valueColumn, int[] selection) {
+		IntBuffer keys = columns[keyColumn];
+		IntBuffer values = columns[valueColumn];
+		int n = selection == null ? rows : selection.length;
+
+		// Keys are small dense integers in practice so sum into an array when possible
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			int key = keys.get(selection == null ? i : selection[i]);
+			min = Math.min(min, key);
+			max = Math.max(max, key);
+		}
+		TreeMap<Integer, Long> result = new TreeMap<>();
+		if (n == 0)
+			return result;
+		if ((long) max - min < 1 << 20) {
+			long[] sums = new long[max - min + 1];
+			boolean[] seen = new boolean[sums.length];
+			for (int i = 0; i < n; i++) {
+				int row = selection == null ? i : selection[i];
+				int slot = keys.get(row) - min;
+				sums[slot] += values.get(row);
+				seen[slot] = true;
+			}
+			for (int i = 0; i < sums.length; i++)
+				if (seen[i])
+					result.put(min + i, sums[i]);
+		} else {
+			for (int i = 0; i < n; i++) {
+				int row = selection == null ? i : selection[i];
+				result.merge(keys.get(row), (long) values.get(row), Long::sum);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the rows with the largest values in a column, for example the top
+	 * balances of a customer.
+	 *
+	 * @param column
+	 *                  column to rank by
+	 * @param k
+	 *                  number of rows to return
+	 * @param selection
+	 *                  rows to consider or null for all rows
+	 * @return
+	 *         row numbers ordered by descending value
+	 */
+	public int[] topK(int column, int k, int[] selection) {
+		IntBuffer col = columns[column];
+		int n = selection == null ? rows : selection.length;
+		k = Math.min(k, n);
+		if (k <= 0)
+			return new int[0];
+
+		// Min-heap of row numbers keyed on column value holding the k largest seen
+		int[] heap = new int[k];
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			int row = selection == null ? i : selection[i];
+			int value = col.get(row);
+			if (size < k) {
+				int pos = size++;
+				while (pos > 0) {
+					int parent = (pos - 1) >>> 1;
+					if (col.get(heap[parent]) <= value)
+						break;
+					heap[pos] = heap[parent];
+					pos = parent;
+				}
+				heap[pos] = row;
+			} else if (value > col.get(heap[0])) {
+				siftDown(col, heap, size, row);
+			}
+		}
+
+		// Pop smallest to the back to leave rows in descending order
+		int[] out = new int[size];
+		for (int end = size - 1; end >= 0; end--) {
+			out[end] = heap[0];
+			siftDown(col, heap, end, heap[end]);
+		}
+		return out;
+	}
+
+	/**
+	 * Places a row at the root of a min-heap and restores the heap order.
+	 */
+	private static void siftDown(IntBuffer col, int[] heap, int size, int row) {
+		int value = col.get(row);
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && col.get(heap[child + 1]) < col.get(heap[child]))
+				child++;
+			if (value <= col.get(heap[child]))
+				break;
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		if (size > 0)
+			heap[pos] = row;
+	}
+}
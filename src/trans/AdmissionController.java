@@ -0,0 +1,342 @@
+package trans;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent transaction operations so that a slow
+ * database does not collect an unbounded number of callers each holding a
+ * connection and locks. Reads and writes have separate concurrency limits that
+ * are tuned from observed latency with AIMD: the limit grows by one per limit's
+ * worth of fast completions and is cut multiplicatively when latency rises well
+ * above the lowest recently observed latency or an operation times out.
+ * Callers over the limit wait a bounded time for a slot and are then rejected.
+ */
+public class AdmissionController {
+	/**
+	 * Kind of operation, each kind has its own limit
+	 */
+	public enum Kind {
+		READ, WRITE
+	}
+
+	/**
+	 * Permit held by an admitted operation. Must be released exactly once, by
+	 * release() or by closing it.
+	 */
+	public interface Permit extends AutoCloseable {
+		/**
+		 * Reports that the operation failed because the database is overloaded, for
+		 * example a lock or query timeout.
+		 */
+		void overloaded();
+
+		/**
+		 * Releases the slot and records the latency of the operation.
+		 */
+		void release();
+
+		/**
+		 * Releases the slot, so a permit can be held in a try-with-resources block.
+		 */
+		@Override
+		default void close() {
+			release();
+		}
+	}
+
+	/**
+	 * Permit used when no admission controller is installed
+	 */
+	public static final Permit NONE = new Permit() {
+		@Override
+		public void overloaded() {
+		}
+
+		@Override
+		public void release() {
+		}
+	};
+
+	/**
+	 * Limiter for read operations
+	 */
+	private final Limiter reads;
+
+	/**
+	 * Limiter for write operations
+	 */
+	private final Limiter writes;
+
+	/**
+	 * Maximum time a caller waits for a slot in milliseconds
+	 */
+	private final long maxWaitMillis;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param initialLimit
+	 *                      initial concurrency limit for each kind
+	 * @param maxLimit
+	 *                      maximum concurrency limit for each kind
+	 * @param maxWaitMillis
+	 *                      maximum time a caller waits for a slot, 0 to reject
+	 *                      immediately when over the limit
+	 */
+	public AdmissionController(int initialLimit, int maxLimit, long maxWaitMillis) {
+		this.reads = new Limiter(initialLimit, maxLimit);
+		this.writes = new Limiter(initialLimit, maxLimit);
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Waits for a slot for an operation.
+	 *
+	 * @param kind
+	 *                 kind of operation
+	 * @param deadline
+	 *                 deadline of the operation or null, a caller never waits
+	 *                 past its deadline
+	 * @return
+	 *         permit to release when the operation completes
+	 * @throws AdmissionRejectedException
+	 *                                    if no slot became free in time
+	 */
+	public Permit acquire(Kind kind, Deadline deadline) throws AdmissionRejectedException {
+		long wait = maxWaitMillis;
+		if (deadline != null)
+			wait = Math.min(wait, deadline.remainingMillis());
+		Limiter limiter = limiter(kind);
+		if (!limiter.acquire(wait))
+			throw new AdmissionRejectedException(kind.toString(), limiter.getLimit());
+		return limiter.new LimiterPermit();
+	}
+
+	/**
+	 * Returns the current concurrency limit.
+	 *
+	 * @param kind
+	 *             kind of operation
+	 * @return
+	 *         concurrency limit
+	 */
+	public int getLimit(Kind kind) {
+		return limiter(kind).getLimit();
+	}
+
+	/**
+	 * Returns the number of operations currently admitted.
+	 *
+	 * @param kind
+	 *             kind of operation
+	 * @return
+	 *         operations in flight
+	 */
+	public int getInFlight(Kind kind) {
+		return limiter(kind).getInFlight();
+	}
+
+	/**
+	 * Returns the number of operations admitted since creation.
+	 *
+	 * @param kind
+	 *             kind of operation
+	 * @return
+	 *         admitted count
+	 */
+	public long getAdmitted(Kind kind) {
+		return limiter(kind).getAdmitted();
+	}
+
+	/**
+	 * Returns the number of operations rejected since creation.
+	 *
+	 * @param kind
+	 *             kind of operation
+	 * @return
+	 *         rejected count
+	 */
+	public long getRejected(Kind kind) {
+		return limiter(kind).getRejected();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (Kind kind : Kind.values()) {
+			Limiter limiter = limiter(kind);
+			buf.append(kind).append(": limit=").append(limiter.getLimit()).append(" inFlight=")
+					.append(limiter.getInFlight()).append(" admitted=").append(limiter.getAdmitted())
+					.append(" rejected=").append(limiter.getRejected()).append('\n');
+		}
+		return buf.toString();
+	}
+
+	private Limiter limiter(Kind kind) {
+		return kind == Kind.READ ? reads : writes;
+	}
+
+	/**
+	 * AIMD concurrency limit for one kind of operation.
+	 */
+	private static class Limiter {
+		/**
+		 * Latency above the no-load latency by this factor counts as congestion
+		 */
+		private static final double TOLERANCE = 2.0;
+
+		/**
+		 * Factor the limit is multiplied by on congestion
+		 */
+		private static final double BACKOFF = 0.9;
+
+		/**
+		 * Rate at which the no-load latency estimate drifts up towards recent
+		 * samples so it recovers after the workload changes
+		 */
+		private static final double DRIFT = 0.01;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition released = lock.newCondition();
+
+		private final int maxLimit;
+
+		private double limit;
+
+		private int inFlight;
+
+		private long admitted;
+
+		private long rejected;
+
+		/**
+		 * Lowest recently observed latency in nanoseconds, 0 if none yet
+		 */
+		private double noLoadNanos;
+
+		Limiter(int initialLimit, int maxLimit) {
+			this.limit = initialLimit;
+			this.maxLimit = maxLimit;
+		}
+
+		boolean acquire(long waitMillis) {
+			lock.lock();
+			try {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+				while (inFlight >= (int) limit) {
+					if (remaining <= 0) {
+						rejected++;
+						return false;
+					}
+					try {
+						remaining = released.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						rejected++;
+						return false;
+					}
+				}
+				inFlight++;
+				admitted++;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void release(long latencyNanos, boolean overloaded) {
+			lock.lock();
+			try {
+				inFlight--;
+				if (noLoadNanos == 0 || latencyNanos < noLoadNanos)
+					noLoadNanos = latencyNanos;
+				else
+					noLoadNanos += (latencyNanos - noLoadNanos) * DRIFT;
+
+				if (overloaded || latencyNanos > noLoadNanos * TOLERANCE)
+					limit = Math.max(1, limit * BACKOFF);
+				else if (inFlight + 1 >= limit / 2)
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				released.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int getLimit() {
+			lock.lock();
+			try {
+				return (int) limit;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int getInFlight() {
+			lock.lock();
+			try {
+				return inFlight;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getAdmitted() {
+			lock.lock();
+			try {
+				return admitted;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getRejected() {
+			lock.lock();
+			try {
+				return rejected;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Permit for one admitted operation.
+		 */
+		class LimiterPermit implements Permit {
+			private final long start = System.nanoTime();
+
+			private boolean overloaded;
+
+			private boolean released;
+
+			@Override
+			public void overloaded() {
+				overloaded = true;
+			}
+
+			@Override
+			public void release() {
+				if (released)
+					return;
+				released = true;
+				Limiter.this.release(System.nanoTime() - start, overloaded);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if an exception shows the database is overloaded.
+	 *
+	 * @param e
+	 *          exception thrown by an operation
+	 * @return
+	 *         true for timeouts
+	 */
+	static boolean isOverload(SQLException e) {
+		return e instanceof OperationTimeoutException || e.getErrorCode() == Deadline.LOCK_TIMEOUT_ERROR;
+	}
+}
@@ -0,0 +1,24 @@
+package trans;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Thrown when an operation is shed because its concurrency limit was reached
+ * and no slot became free within the allowed wait. Nothing was sent to the
+ * database so the operation may be retried later.
+ */
+public class AdmissionRejectedException extends SQLTransientException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param kind
+	 *              kind of operation rejected
+	 * @param limit
+	 *              concurrency limit at the time of rejection
+	 */
+	public AdmissionRejectedException(String kind, int limit) {
+		super(kind + " rejected because concurrency limit of " + limit + " was reached.");
+	}
+}
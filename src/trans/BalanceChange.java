@@ -0,0 +1,91 @@
+package trans;
+
+/**
+ * Committed balance of an account, delivered to balance subscribers.
+ */
+public final class BalanceChange {
+	/**
+	 * Account id
+	 */
+	private final int acctId;
+
+	/**
+	 * Owner cid
+	 */
+	private final int cid;
+
+	/**
+	 * Balance after the change
+	 */
+	private final int amount;
+
+	/**
+	 * Row version of the account after the change
+	 */
+	private final long version;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param acctId
+	 *                account id
+	 * @param cid
+	 *                owner cid
+	 * @param amount
+	 *                balance after the change
+	 * @param version
+	 *                row version of the account after the change
+	 */
+	public BalanceChange(int acctId, int cid, int amount, long version) {
+		this.acctId = acctId;
+		this.cid = cid;
+		this.amount = amount;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the account id.
+	 *
+	 * @return
+	 *         account id
+	 */
+	public int getAcctId() {
+		return acctId;
+	}
+
+	/**
+	 * Returns the owner of the account.
+	 *
+	 * @return
+	 *         owner cid
+	 */
+	public int getCid() {
+		return cid;
+	}
+
+	/**
+	 * Returns the balance after the change.
+	 *
+	 * @return
+	 *         balance
+	 */
+	public int getAmount() {
+		return amount;
+	}
+
+	/**
+	 * Returns the row version of the account after the change. Later changes of
+	 * an account have higher versions.
+	 *
+	 * @return
+	 *         row version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return "Balance for account " + acctId + ": " + amount;
+	}
+}
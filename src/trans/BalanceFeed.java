@@ -0,0 +1,295 @@
+package trans;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes committed balance changes to subscribers so clients do not poll
+ * queryBalance. Operations call publish() after they commit. A subscriber sees
+ * every account, a set of acctIds or the accounts of one cid.
+ *
+ * Each subscription keeps at most one pending change per account. A change to
+ * an account that has not been delivered yet replaces the pending one, so a
+ * slow subscriber receives only the latest balance of each account and its
+ * queue never grows beyond the number of accounts it watches. Changes are
+ * delivered on the executor only while the subscriber has outstanding demand,
+ * one signal at a time per subscription.
+ *
+ * Every change carries the rowversion of the account written by the committing
+ * statement. Operations that commit one after the other may still publish in
+ * the opposite order, so a subscription drops a change whose version is not
+ * newer than the last one it accepted for the account, pending or delivered.
+ *
+ * Only changes made through the operations of this process are seen.
+ */
+public class BalanceFeed implements Flow.Publisher<BalanceChange> {
+	/**
+	 * Filter value for subscriptions that are not limited to one customer
+	 */
+	private static final int ANY_CID = Integer.MIN_VALUE;
+
+	/**
+	 * Executor delivering signals to subscribers
+	 */
+	private final Executor executor;
+
+	/**
+	 * Active subscriptions
+	 */
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor
+	 *                 executor delivering signals to subscribers
+	 */
+	public BalanceFeed(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Subscribes to changes of every account.
+	 *
+	 * @param subscriber
+	 *                   subscriber
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super BalanceChange> subscriber) {
+		add(new Subscription(subscriber, null, ANY_CID));
+	}
+
+	/**
+	 * Subscribes to changes of a set of accounts.
+	 *
+	 * @param acctIds
+	 *                   account ids
+	 * @param subscriber
+	 *                   subscriber
+	 */
+	public void subscribeAccounts(int[] acctIds, Flow.Subscriber<? super BalanceChange> subscriber) {
+		int[] sorted = acctIds.clone();
+		Arrays.sort(sorted);
+		add(new Subscription(subscriber, sorted, ANY_CID));
+	}
+
+	/**
+	 * Subscribes to changes of the accounts of a customer.
+	 *
+	 * @param cid
+	 *                   customer id
+	 * @param subscriber
+	 *                   subscriber
+	 */
+	public void subscribeCustomer(int cid, Flow.Subscriber<? super BalanceChange> subscriber) {
+		add(new Subscription(subscriber, null, cid));
+	}
+
+	/**
+	 * Offers a committed balance to the matching subscriptions.
+	 *
+	 * @param acctId
+	 *                account id
+	 * @param cid
+	 *                owner cid
+	 * @param amount
+	 *                balance after the change
+	 * @param version
+	 *                row version of the account after the change
+	 */
+	public void publish(int acctId, int cid, int amount, long version) {
+		if (subscriptions.isEmpty())
+			return;
+		publish(new BalanceChange(acctId, cid, amount, version));
+	}
+
+	/**
+	 * Offers a committed balance change to the matching subscriptions.
+	 *
+	 * @param change
+	 *               committed change
+	 */
+	public void publish(BalanceChange change) {
+		for (Subscription s : subscriptions)
+			if (s.matches(change))
+				s.offer(change);
+	}
+
+	/**
+	 * Returns true if any subscriber is registered.
+	 *
+	 * @return
+	 *         true if there are subscriptions
+	 */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Completes every subscription after its pending changes are delivered.
+	 */
+	public void close() {
+		for (Subscription s : subscriptions)
+			s.complete();
+		subscriptions.clear();
+	}
+
+	/**
+	 * Signals onSubscribe and registers a subscription.
+	 */
+	private void add(Subscription s) {
+		s.subscriber.onSubscribe(s);
+		subscriptions.add(s);
+	}
+
+	/**
+	 * Subscription holding the latest undelivered change of each account.
+	 */
+	private class Subscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super BalanceChange> subscriber;
+
+		private final int[] acctIds;
+
+		private final int cid;
+
+		/**
+		 * Undelivered changes by acctId, in the order accounts first changed
+		 */
+		private final LinkedHashMap<Integer, BalanceChange> pending = new LinkedHashMap<>();
+
+		/**
+		 * Version of the last change accepted for each acctId
+		 */
+		private final HashMap<Integer, Long> versions = new HashMap<>();
+
+		private long demand;
+
+		private boolean draining;
+
+		private boolean completing;
+
+		private boolean cancelled;
+
+		private Throwable error;
+
+		Subscription(Flow.Subscriber<? super BalanceChange> subscriber, int[] acctIds, int cid) {
+			this.subscriber = subscriber;
+			this.acctIds = acctIds;
+			this.cid = cid;
+		}
+
+		boolean matches(BalanceChange change) {
+			if (acctIds != null)
+				return Arrays.binarySearch(acctIds, change.getAcctId()) >= 0;
+			return cid == ANY_CID || cid == change.getCid();
+		}
+
+		void offer(BalanceChange change) {
+			synchronized (this) {
+				if (cancelled || completing)
+					return;
+				Long accepted = versions.get(change.getAcctId());
+				if (accepted != null && accepted >= change.getVersion())
+					return;
+				versions.put(change.getAcctId(), change.getVersion());
+				pending.put(change.getAcctId(), change);
+			}
+			schedule();
+		}
+
+		void complete() {
+			synchronized (this) {
+				completing = true;
+			}
+			schedule();
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				if (n <= 0)
+					error = new IllegalArgumentException("Requested " + n + " changes, must be positive.");
+				else
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				pending.clear();
+				versions.clear();
+			}
+			subscriptions.remove(this);
+		}
+
+		/**
+		 * Starts delivery on the executor unless it is already running.
+		 */
+		private void schedule() {
+			synchronized (this) {
+				if (draining || cancelled)
+					return;
+				draining = true;
+			}
+			executor.execute(this::drain);
+		}
+
+		/**
+		 * Delivers pending changes while there is demand, then completion or an
+		 * error.
+		 */
+		private void drain() {
+			while (true) {
+				BalanceChange next = null;
+				Throwable failed = null;
+				boolean done = false;
+				synchronized (this) {
+					if (cancelled) {
+						draining = false;
+						return;
+					}
+					if (error != null) {
+						failed = error;
+						cancelled = true;
+					} else if (demand > 0 && !pending.isEmpty()) {
+						Iterator<BalanceChange> it = pending.values().iterator();
+						next = it.next();
+						it.remove();
+						demand--;
+					} else if (completing && pending.isEmpty()) {
+						done = true;
+						cancelled = true;
+					} else {
+						draining = false;
+						return;
+					}
+				}
+				try {
+					if (failed != null) {
+						subscriptions.remove(this);
+						subscriber.onError(failed);
+					} else if (done) {
+						subscriber.onComplete();
+					} else {
+						subscriber.onNext(next);
+					}
+				} catch (RuntimeException e) {
+					// A subscriber that throws is cancelled
+					System.err.println("Balance subscriber failed: " + e);
+					cancel();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a balance adjustment, such as month-end interest or a fee, to every
+ * account of a given type. Accounts are walked in acctId order in chunks: each
+ * chunk is one set-based UPDATE of the next chunk-size accounts of the type
+ * followed by a commit, so the job never holds more than one chunk of row locks
+ * and never escalates to a table lock that would block transfers.
+ *
+ * The last acctId of every committed chunk is saved in the BalanceJobCheckpoint
+ * table in the same transaction as the chunk. Each chunk starts by reading the
+ * checkpoint with an update lock, so runs of the same job that overlap take
+ * turns chunk by chunk and never apply a chunk twice. Running a job again with
+ * the same name resumes after the last committed chunk, and a finished job is
+ * never applied twice.
+ *
+ * The chunk size adapts to lock waits. A chunk that spent longer than the
+ * target waiting on locks halves the chunk size, and a chunk that did not wait
+ * grows it. A chunk whose UPDATE hits the lock timeout is rolled back and
+ * retried at half the size. A lock timeout while waiting for the checkpoint
+ * only means an overlapping run is applying its chunk, so the chunk is retried
+ * at the same size. Lock waits are read from sys.dm_exec_session_wait_stats. If
+ * that view is not available, the elapsed time of the UPDATE is used instead.
+ *
+ * If a balance feed is set, the new balances of a chunk are published after the
+ * chunk commits.
+ */
+public class BulkBalanceJob {
+	/**
+	 * Chunks stay well below SQL Server's lock escalation threshold of 5000 locks
+	 */
+	private static final int MAX_CHUNK = 4000;
+
+	/**
+	 * Smallest chunk size
+	 */
+	private static final int MIN_CHUNK = 10;
+
+	/**
+	 * SQL Server error code for a primary key violation
+	 */
+	private static final int DUPLICATE_KEY_ERROR = 2627;
+
+	/**
+	 * Returned by runChunk() when the job has finished
+	 */
+	private static final int FINISHED = -1;
+
+	/**
+	 * Returned by runChunk() when an overlapping run held the checkpoint past the
+	 * lock timeout
+	 */
+	private static final int CHECKPOINT_BUSY = -2;
+
+	/**
+	 * Lock wait time of this session so far
+	 */
+	private static final String LOCK_WAIT_SQL = "SELECT COALESCE(sum(wait_time_ms), 0) "
+			+ "FROM sys.dm_exec_session_wait_stats WHERE session_id = @@SPID AND wait_type LIKE 'LCK%'";
+
+	/**
+	 * Connection to use
+	 */
+	private final Connection con;
+
+	/**
+	 * Name of the job, identifies its checkpoint
+	 */
+	private final String name;
+
+	/**
+	 * Account type adjusted
+	 */
+	private final int accType;
+
+	/**
+	 * Interest in basis points (1/100 of a percent) of the current balance
+	 */
+	private final int basisPoints;
+
+	/**
+	 * Fixed amount added to each balance, negative for a fee
+	 */
+	private final int fixedAmount;
+
+	/**
+	 * Current chunk size
+	 */
+	private int chunkSize = 500;
+
+	/**
+	 * Lock wait per chunk above which the chunk size is reduced, in milliseconds
+	 */
+	private long targetLockWaitMillis = 50;
+
+	/**
+	 * Longest wait for a single lock before the chunk is retried smaller
+	 */
+	private long lockTimeoutMillis = 1000;
+
+	/**
+	 * False once the wait stats view turned out to be unavailable
+	 */
+	private boolean waitStats = true;
+
+	/**
+	 * Feed to publish committed balances to or null
+	 */
+	private BalanceFeed feed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param con
+	 *                    connection to use
+	 * @param name
+	 *                    name of the job, at most 64 characters
+	 * @param accType
+	 *                    account type to adjust
+	 * @param basisPoints
+	 *                    interest in basis points of the current balance
+	 * @param fixedAmount
+	 *                    fixed amount added to each balance, negative for a fee
+	 */
+	public BulkBalanceJob(Connection con, String name, int accType, int basisPoints, int fixedAmount) {
+		this.con = con;
+		this.name = name;
+		this.accType = accType;
+		this.basisPoints = basisPoints;
+		this.fixedAmount = fixedAmount;
+	}
+
+	/**
+	 * Sets the initial chunk size.
+	 *
+	 * @param chunkSize
+	 *                  rows per chunk
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, chunkSize));
+	}
+
+	/**
+	 * Returns the current chunk size.
+	 *
+	 * @return
+	 *         rows per chunk
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the feed that committed balances are published to.
+	 *
+	 * @param feed
+	 *             balance feed or null to publish nothing
+	 */
+	public void setBalanceFeed(BalanceFeed feed) {
+		this.feed = feed;
+	}
+
+	/**
+	 * Sets the lock wait per chunk above which chunks get smaller.
+	 *
+	 * @param millis
+	 *               target lock wait in milliseconds
+	 */
+	public void setTargetLockWaitMillis(long millis) {
+		this.targetLockWaitMillis = millis;
+	}
+
+	/**
+	 * Sets the longest wait for a single lock before a chunk is retried smaller.
+	 *
+	 * @param millis
+	 *               lock timeout in milliseconds
+	 */
+	public void setLockTimeoutMillis(long millis) {
+		this.lockTimeoutMillis = millis;
+	}
+
+	/**
+	 * Runs the job from its last checkpoint to the end.
+	 *
+	 * @return
+	 *         number of accounts adjusted by this run
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public long run() throws SQLException {
+		try {
+			startCheckpoint();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+
+		long adjusted = 0;
+		try {
+			Statement setTimeout = con.createStatement();
+			setTimeout.execute("SET LOCK_TIMEOUT " + lockTimeoutMillis);
+			setTimeout.close();
+			while (true) {
+				int rows;
+				try {
+					rows = runChunk();
+				} catch (SQLException e) {
+					con.rollback();
+					if (e.getErrorCode() != Deadline.LOCK_TIMEOUT_ERROR || chunkSize == MIN_CHUNK)
+						throw e;
+					chunkSize = Math.max(MIN_CHUNK, chunkSize / 2);
+					System.out.println("Lock timeout, retrying with chunk size " + chunkSize + ".");
+					continue;
+				}
+				if (rows == CHECKPOINT_BUSY)
+					continue;
+				if (rows == FINISHED)
+					break;
+				adjusted += rows;
+			}
+		} finally {
+			Deadline.clearLockTimeout(con);
+		}
+		System.out.println("Job " + name + " adjusted " + adjusted + " accounts.");
+		return adjusted;
+	}
+
+	/**
+	 * Creates the checkpoint of the job if it does not exist.
+	 */
+	private void startCheckpoint() throws SQLException {
+		PreparedStatement stmt = con.prepareStatement(
+				"INSERT INTO BalanceJobCheckpoint (jobName, lastAcctId) VALUES (?, " + Integer.MIN_VALUE + ")");
+		stmt.setString(1, name);
+		try {
+			stmt.executeUpdate();
+			con.commit();
+		} catch (SQLException e) {
+			// An earlier or concurrent run created it
+			if (e.getErrorCode() != DUPLICATE_KEY_ERROR)
+				throw e;
+			con.rollback();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Adjusts the next chunk of accounts after the checkpoint and commits it with
+	 * the advanced checkpoint. Marks the job as finished when no accounts are
+	 * left.
+	 *
+	 * @return
+	 *         rows adjusted, FINISHED if the job has finished or CHECKPOINT_BUSY
+	 *         if the checkpoint stayed locked by an overlapping run
+	 */
+	private int runChunk() throws SQLException {
+		long waitBefore = lockWaitMillis();
+		long start = System.nanoTime();
+
+		// The update lock makes an overlapping run wait until this chunk commits
+		PreparedStatement stmt = con.prepareStatement(
+				"SELECT lastAcctId, finished FROM BalanceJobCheckpoint WITH (UPDLOCK) WHERE jobName = ?");
+		stmt.setString(1, name);
+		ResultSet rs;
+		try {
+			rs = stmt.executeQuery();
+		} catch (SQLException e) {
+			// Not row lock contention, so the chunk size stays
+			if (e.getErrorCode() != Deadline.LOCK_TIMEOUT_ERROR)
+				throw e;
+			stmt.close();
+			con.rollback();
+			System.out.println("Job " + name + " is running elsewhere, waiting for its chunk.");
+			return CHECKPOINT_BUSY;
+		}
+		if (!rs.next())
+			throw new SQLException("Checkpoint of job " + name + " not found.");
+		int afterAcctId = rs.getInt(1);
+		boolean finished = rs.getBoolean(2);
+		stmt.close();
+		if (finished) {
+			con.commit();
+			System.out.println("Job " + name + " already finished.");
+			return FINISHED;
+		}
+
+		// Only the chunk's own rows are updated, so at most chunkSize rows are locked
+		stmt = con.prepareStatement("WITH chunk AS (SELECT TOP (?) acctId, amount FROM Account "
+				+ "WHERE accType = ? AND acctId > ? ORDER BY acctId) "
+				+ "UPDATE chunk SET amount = amount + CAST(CAST(amount AS bigint) * ? / 10000 AS int) + ? "
+				+ "OUTPUT inserted.acctId, inserted.cid, inserted.amount, CAST(inserted.ver AS bigint)");
+		stmt.setInt(1, chunkSize);
+		stmt.setInt(2, accType);
+		stmt.setInt(3, afterAcctId);
+		stmt.setInt(4, basisPoints);
+		stmt.setInt(5, fixedAmount);
+		rs = stmt.executeQuery();
+		int rows = 0;
+		int last = afterAcctId;
+		List<BalanceChange> changes = feed != null && feed.hasSubscribers() ? new ArrayList<>() : null;
+		while (rs.next()) {
+			int acctId = rs.getInt(1);
+			last = Math.max(last, acctId);
+			rows++;
+			if (changes != null)
+				changes.add(new BalanceChange(acctId, rs.getInt(2), rs.getInt(3), rs.getLong(4)));
+		}
+		stmt.close();
+
+		stmt = con.prepareStatement("UPDATE BalanceJobCheckpoint SET lastAcctId = ?, rowsDone = rowsDone + ?, "
+				+ "finished = ? WHERE jobName = ?");
+		stmt.setInt(1, last);
+		stmt.setInt(2, rows);
+		stmt.setBoolean(3, rows == 0);
+		stmt.setString(4, name);
+		stmt.executeUpdate();
+		stmt.close();
+
+		// Read the wait first, it may find the view unavailable and fall back to elapsed time
+		long waitAfter = lockWaitMillis();
+		long waited = waitStats ? Math.max(0, waitAfter - waitBefore) : (System.nanoTime() - start) / 1000000;
+		con.commit();
+		if (changes != null)
+			for (BalanceChange change : changes)
+				feed.publish(change);
+		if (rows == 0)
+			return FINISHED;
+		adapt(waited);
+		return rows;
+	}
+
+	/**
+	 * Changes the chunk size from the lock wait of the last chunk.
+	 */
+	private void adapt(long waitedMillis) {
+		if (waitedMillis > targetLockWaitMillis)
+			chunkSize = Math.max(MIN_CHUNK, chunkSize / 2);
+		else if (waitedMillis <= targetLockWaitMillis / 4)
+			chunkSize = Math.min(MAX_CHUNK, chunkSize + chunkSize / 4 + 1);
+	}
+
+	/**
+	 * Returns the lock wait time of the session so far, or 0 once the wait stats
+	 * view is found to be unavailable.
+	 */
+	private long lockWaitMillis() throws SQLException {
+		if (!waitStats)
+			return 0;
+		try {
+			Statement stmt = con.createStatement();
+			ResultSet rs = stmt.executeQuery(LOCK_WAIT_SQL);
+			rs.next();
+			long waited = rs.getLong(1);
+			stmt.close();
+			return waited;
+		} catch (SQLException e) {
+			System.out.println("Session wait stats unavailable, adapting on elapsed time.");
+			waitStats = false;
+			return 0;
+		}
+	}
+}
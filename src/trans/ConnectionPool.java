@@ -0,0 +1,126 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fixed-size pool of database connections with auto-commit turned off, all set
+ * to the same isolation level. Connections are opened lazily up to the pool
+ * size. A borrowed connection must be committed or rolled back before it is
+ * released back to the pool.
+ */
+public class ConnectionPool implements AutoCloseable {
+	/**
+	 * Maximum number of connections
+	 */
+	private final int size;
+
+	/**
+	 * Isolation level of every connection in the pool
+	 */
+	private final int isolation;
+
+	/**
+	 * Connections not currently borrowed
+	 */
+	private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+	/**
+	 * Every connection opened by the pool
+	 */
+	private final List<Connection> opened = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size
+	 *                  maximum number of connections
+	 * @param isolation
+	 *                  isolation level of the connections, for example
+	 *                  DatabaseTransactions.TRANSACTION_SNAPSHOT
+	 */
+	public ConnectionPool(int size, int isolation) {
+		this.size = size;
+		this.isolation = isolation;
+	}
+
+	/**
+	 * Borrows a connection, waiting for one to be released if all are in use.
+	 *
+	 * @return
+	 *         connection
+	 * @throws SQLException
+	 *                      if a connection cannot be opened or the wait is
+	 *                      interrupted
+	 */
+	public Connection borrow() throws SQLException {
+		Connection con = idle.poll();
+		if (con != null)
+			return con;
+		synchronized (opened) {
+			if (opened.size() < size) {
+				con = DatabaseTransactions.openConnection();
+				con.setTransactionIsolation(isolation);
+				opened.add(con);
+				return con;
+			}
+		}
+		try {
+			return idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection.", e);
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool.
+	 *
+	 * @param con
+	 *            connection to return
+	 */
+	public void release(Connection con) {
+		idle.add(con);
+	}
+
+	/**
+	 * Returns the isolation level of the connections in the pool.
+	 *
+	 * @return
+	 *         isolation level
+	 */
+	public int getIsolation() {
+		return isolation;
+	}
+
+	/**
+	 * Returns the maximum number of connections.
+	 *
+	 * @return
+	 *         pool size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Closes every connection opened by the pool.
+	 */
+	@Override
+	public void close() {
+		synchronized (opened) {
+			for (Connection con : opened) {
+				try {
+					con.close();
+				} catch (SQLException e) {
+					System.err.println("SQLException: " + e);
+				}
+			}
+			opened.clear();
+			idle.clear();
+		}
+	}
+}
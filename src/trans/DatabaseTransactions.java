@@ -3,13 +3,19 @@ package trans;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Performs various bank transactions on Microsoft SQL Server using different
@@ -31,11 +37,79 @@ public class DatabaseTransactions {
 	 */
 	public static final String ACCOUNT_TABLE_NAME = "Account";
 
+	/**
+	 * Account columns returned to callers, without the internal ver rowversion
+	 */
+	private static final String ACCOUNT_COLUMNS = "acctId, cid, amount, accType";
+
 	/**
 	 * Database name
 	 */
 	public static final String DATABASE_NAME = "tempdb";
 
+	/**
+	 * SQL Server snapshot isolation level for Connection.setTransactionIsolation
+	 */
+	public static final int TRANSACTION_SNAPSHOT = Connection.TRANSACTION_READ_COMMITTED + 4094;
+
+	/**
+	 * SQL Server error code for a primary key violation
+	 */
+	private static final int DUPLICATE_KEY_ERROR = 2627;
+
+	/**
+	 * Outcomes of recently seen transfer request ids
+	 */
+	private final TransferDedup dedup = new TransferDedup(10000);
+
+	/**
+	 * Owner cid of every account, loaded on first use
+	 */
+	private final OwnershipIndex owners = new OwnershipIndex();
+
+	/**
+	 * Subscribers to committed balance changes
+	 */
+	private final BalanceFeed feed = new BalanceFeed(ForkJoinPool.commonPool());
+
+	/**
+	 * Read-only calls with less time than this left on their deadline run under
+	 * SNAPSHOT isolation, 0 to never downgrade
+	 */
+	private long snapshotDowngradeMillis = 0;
+
+	/**
+	 * Admission controller limiting concurrent operations or null if unlimited
+	 */
+	private AdmissionController admission;
+
+	/**
+	 * Lock wait diagnostics sampler or null if off
+	 */
+	private LockDiagnostics diagnostics;
+
+	/**
+	 * Interleaving ordering the steps of concurrent operations or null if the
+	 * operations use their timed pauses
+	 */
+	private volatile Interleaving interleaving;
+
+	/**
+	 * False to skip the timed pauses of getTotals and updateAccountBalance
+	 */
+	private volatile boolean pauses = true;
+
+	/**
+	 * Profiler wrapping connections opened by connect() or null if off
+	 */
+	private JdbcProfiler profiler;
+
+	/**
+	 * Connection pools by isolation level for calls that choose their isolation
+	 * level, or null if not installed
+	 */
+	private IsolationPools isolationPools;
+
 	/**
 	 * Main method
 	 * 
@@ -106,12 +180,28 @@ public class DatabaseTransactions {
 	 *         connection
 	 */
 	public Connection connect() throws SQLException {
+		System.out.println("Connecting to database.");
+		con = openConnection();
+		if (profiler != null)
+			con = profiler.wrap(con);
+		return con;
+	}
+
+	/**
+	 * Opens a new connection to Microsoft SQL Server database with auto-commit
+	 * turned off. Used by connect() and by connection pools.
+	 * 
+	 * @return
+	 *         connection
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public static Connection openConnection() throws SQLException {
 		String url = "jdbc:sqlserver://localhost:1433;DatabaseName=" + DATABASE_NAME;
 		String uid = "sa";
 		String pw = "MSsql404!";
 
-		System.out.println("Connecting to database.");
-		con = DriverManager.getConnection(url, uid, pw);
+		Connection con = DriverManager.getConnection(url, uid, pw);
 
 		// Important: Setting autoCommit() to false requires you to commit or rollback
 		// explicitly rather than driver committing after every statement.
@@ -125,6 +215,7 @@ public class DatabaseTransactions {
 	public void load() throws Exception {
 		executeScript("bin/data/drop.sql");
 		executeScript("bin/data/bank.sql");
+		resetCaches();
 
 		// Enable SNAPSHOT_ISOLATION for the database
 		Statement stmt = con.createStatement();
@@ -132,6 +223,15 @@ public class DatabaseTransactions {
 		con.commit();
 	}
 
+	/**
+	 * Forgets in-memory state derived from the database. Must be called after the
+	 * tables are reloaded or reset by anything other than load().
+	 */
+	public void resetCaches() {
+		dedup.clear();
+		owners.clear();
+	}
+
 	/**
 	 * Performs a query that prints out all customer data.
 	 */
@@ -147,7 +247,64 @@ public class DatabaseTransactions {
 	public ResultSet query_account() throws SQLException {
 		Statement stmt = con.createStatement();
 		System.out.println("\nAccount data: ");
-		return stmt.executeQuery("SELECT * FROM " + ACCOUNT_TABLE_NAME);
+		return stmt.executeQuery("SELECT " + ACCOUNT_COLUMNS + " FROM " + ACCOUNT_TABLE_NAME);
+	}
+
+	/**
+	 * Streams all rows of the Customer or Account table to a CSV or binary file.
+	 * Rows are read with a forward-only, read-only statement and the given fetch
+	 * size and written through reusable buffers, so heap use does not grow with
+	 * the number of rows.
+	 * 
+	 * @param tableName
+	 *                  CUSTOMER_TABLE_NAME or ACCOUNT_TABLE_NAME
+	 * @param file
+	 *                  file to write
+	 * @param format
+	 *                  file format
+	 * @param fetchSize
+	 *                  number of rows to fetch from the server at a time
+	 * @return
+	 *         number of rows exported
+	 * @throws SQLException
+	 *                      if a database error occurs
+	 * @throws IOException
+	 *                      if a file I/O error occurs
+	 */
+	public long exportTable(String tableName, Path file, ResultSetExporter.Format format, int fetchSize)
+			throws SQLException, IOException {
+		if (!tableName.equals(CUSTOMER_TABLE_NAME) && !tableName.equals(ACCOUNT_TABLE_NAME))
+			throw new SQLException("Unknown table " + tableName + ".");
+		Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			stmt.setFetchSize(fetchSize);
+			System.out.println("Exporting " + tableName + " to " + file + ".");
+			String columns = tableName.equals(ACCOUNT_TABLE_NAME) ? ACCOUNT_COLUMNS : "*";
+			ResultSet rs = stmt.executeQuery("SELECT " + columns + " FROM " + tableName);
+			long rows = ResultSetExporter.export(rs, file, format);
+			con.commit();
+			System.out.println("Exported " + rows + " rows.");
+			return rows;
+		} catch (SQLException | IOException | RuntimeException e) {
+			// A failed file write must not leave the read transaction open
+			con.rollback();
+			throw e;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Copies the Account table into off-heap columns for analytics. The copy is
+	 * read under SNAPSHOT isolation so it does not block transfers.
+	 * 
+	 * @return
+	 *         snapshot of the Account table
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public AccountSnapshot snapshotAccounts() throws SQLException {
+		return AccountSnapshot.load(con);
 	}
 
 	/**
@@ -163,34 +320,47 @@ public class DatabaseTransactions {
 	 *                account balance
 	 */
 	public void createAccount(Connection con, int custId, int acctype, int acctId, int acctBal) {
-		PreparedStatement stmt = null;
-
-		try {
-			stmt = con.prepareStatement("INSERT INTO Account (acctId, cid, amount, acctype) VALUES (?, ?, ?, ?);");
-			stmt.setInt(1, acctId);
-			stmt.setInt(2, custId);
-			stmt.setInt(3, acctBal);
-			stmt.setInt(4, acctype);
-			System.out.println("Performing INSERT.");
-			stmt.executeUpdate();
-			System.out.println("INSERT done.");
-			con.commit();
-			System.out.println("New account created successfully.");
-		} catch (SQLException e) {
-			System.out.println("Failed to create new customer account account: " + acctId + " Exception: " + e);
+		try (Operation op = begin("createAccount", AdmissionController.Kind.WRITE, con, null)) {
+			PreparedStatement stmt = null;
 			try {
-				con.rollback(); // Undo any changes if have an exception
-			} catch (SQLException ex) {
-				System.err.println("SQLException: " + ex);
-			}
-		} finally {
-			if (stmt != null) {
+				stmt = con.prepareStatement("INSERT INTO Account (acctId, cid, amount, acctype) "
+						+ "OUTPUT CAST(inserted.ver AS bigint) VALUES (?, ?, ?, ?);");
+				stmt.setInt(1, acctId);
+				stmt.setInt(2, custId);
+				stmt.setInt(3, acctBal);
+				stmt.setInt(4, acctype);
+				System.out.println("Performing INSERT.");
+				checkpointBefore(con, "insert");
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				long version = rs.getLong(1);
+				checkpointAfter(con, "insert");
+				System.out.println("INSERT done.");
+				checkpointBefore(con, "commit insert");
+				con.commit();
+				checkpointAfter(con, "commit insert");
+				owners.put(acctId, custId);
+				feed.publish(acctId, custId, acctBal, version);
+				System.out.println("New account created successfully.");
+			} catch (SQLException e) {
+				op.overloaded(e);
+				System.out.println("Failed to create new customer account account: " + acctId + " Exception: " + e);
 				try {
-					stmt.close(); // Close statement
+					con.rollback(); // Undo any changes if have an exception
 				} catch (SQLException ex) {
 					System.err.println("SQLException: " + ex);
 				}
+			} finally {
+				if (stmt != null) {
+					try {
+						stmt.close(); // Close statement
+					} catch (SQLException ex) {
+						System.err.println("SQLException: " + ex);
+					}
+				}
 			}
+		} catch (AdmissionRejectedException e) {
+			System.out.println("Failed to create new customer account account: " + acctId + " Exception: " + e);
 		}
 	}
 
@@ -207,9 +377,69 @@ public class DatabaseTransactions {
 	 *                      if an error occurs
 	 */
 	public int[] getTotals(Connection con) throws SQLException {
+		return getTotals(con, null);
+	}
+
+	/**
+	 * Performs two queries that computes the total of all accounts at a given
+	 * isolation level, on a connection from the isolation pools that is already
+	 * set to that level.
+	 * 
+	 * @param isolation
+	 *                  isolation level, a Connection.TRANSACTION_ constant or
+	 *                  TRANSACTION_SNAPSHOT
+	 * @return
+	 *         integer array with first value being total returned by first query
+	 *         and second value being total returned by second query
+	 * @throws SQLException
+	 *                      if an error occurs or no isolation pools are installed
+	 */
+	public int[] getTotals(int isolation) throws SQLException {
+		IsolationPools pools = pools();
+		Connection con = pools.borrow(isolation);
+		try {
+			return getTotals(con, null);
+		} finally {
+			pools.release(con);
+		}
+	}
+
+	/**
+	 * Performs two queries that computes the total of all accounts within a
+	 * deadline. Lock waits and queries that would run past the deadline fail
+	 * with an OperationTimeoutException instead of blocking.
+	 * 
+	 * @param con
+	 *                 connection to use
+	 * @param deadline
+	 *                 deadline of the operation or null to wait indefinitely
+	 * @return
+	 *         integer array with first value being total returned by first query
+	 *         and second value being total returned by second query
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public int[] getTotals(Connection con, Deadline deadline) throws SQLException {
+		try (Operation op = begin("getTotals", AdmissionController.Kind.READ, con, deadline)) {
+			return getTotals(con, deadline, op);
+		}
+	}
+
+	/**
+	 * Performs the two total queries of an admitted getTotals call.
+	 */
+	private int[] getTotals(Connection con, Deadline deadline, Operation op)
+			throws SQLException {
+		int isolation = -1;
 		try {
+			isolation = downgradeToSnapshot(con, deadline);
 			PreparedStatement stmt = con.prepareStatement("SELECT sum(amount) FROM Account");
+			if (deadline != null) {
+				deadline.applyLockTimeout(con, "getTotals");
+				deadline.applyQueryTimeout(stmt, "getTotals");
+			}
 			System.out.println("Getting first total.");
+			checkpointBefore(con, "read 1");
 			ResultSet rs = stmt.executeQuery();
 			if (!rs.next()) {
 				con.rollback();
@@ -218,15 +448,24 @@ public class DatabaseTransactions {
 			int[] values = new int[2];
 			int value = (int) rs.getInt(1);
 			values[0] = value;
+			checkpointAfter(con, "read 1");
 
-			// Perform a pause between queries
+			// Perform a pause between queries unless an interleaving orders the queries.
+			// Under a deadline the pause takes at most half the time left, so the
+			// second query gets at least as long as the pause.
 			try {
-				Thread.sleep(2000);
+				if (pauses && interleaving == null)
+					Thread.sleep(deadline == null ? 2000 : Math.min(2000, deadline.remainingMillis() / 2));
 			} catch (InterruptedException e) {
 				// Ignore any exception
 			}
 
+			if (deadline != null) {
+				deadline.applyLockTimeout(con, "getTotals");
+				deadline.applyQueryTimeout(stmt, "getTotals");
+			}
 			System.out.println("Getting second total.");
+			checkpointBefore(con, "read 2");
 			rs = stmt.executeQuery();
 			System.out.println("Second query complete.");
 			if (!rs.next()) {
@@ -235,16 +474,67 @@ public class DatabaseTransactions {
 			}
 			value = (int) rs.getInt(1);
 			values[1] = value;
+			checkpointAfter(con, "read 2");
 
+			checkpointBefore(con, "commit read");
 			con.commit();
+			checkpointAfter(con, "commit read");
 			System.out.println("Transaction committed.");
 			return values;
 		} catch (SQLException e) {
 			con.rollback();
-			throw e;
+			throw op.overloaded(deadline == null ? e : deadline.translate(e, "getTotals"));
+		} finally {
+			restoreIsolation(con, deadline, isolation);
 		}
 	}
 
+	/**
+	 * Computes the total of all accounts by summing acctId ranges in parallel,
+	 * each under SNAPSHOT isolation on its own pooled connection. Each range
+	 * reads its own snapshot, so a transfer committing during the call may be
+	 * counted on one side only.
+	 * 
+	 * @param pool
+	 *                   connection pool to borrow the partition connections from
+	 * @param partitions
+	 *                   number of partitions summed in parallel
+	 * @param verify
+	 *                   true to also compute the total serially and fail if the two
+	 *                   totals differ
+	 * @return
+	 *         total of all accounts
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public long getTotalParallel(ConnectionPool pool, int partitions, boolean verify) throws SQLException {
+		ParallelTotals totals = new ParallelTotals(pool, partitions);
+		totals.setVerify(verify);
+		return totals.total();
+	}
+
+	/**
+	 * Writes a statement file for every customer. All statements are read in one
+	 * SNAPSHOT transaction, so they are consistent with each other and do not
+	 * block transfers, and are written by parallel worker threads.
+	 *
+	 * @param pool
+	 *                connection pool to borrow the reading connection from
+	 * @param dir
+	 *                directory to write statement files to
+	 * @param workers
+	 *                number of threads writing statements
+	 * @return
+	 *         number of statements written
+	 * @throws SQLException
+	 *                      if a database error occurs
+	 * @throws IOException
+	 *                      if a file I/O error occurs
+	 */
+	public int generateStatements(ConnectionPool pool, Path dir, int workers) throws SQLException, IOException {
+		return new StatementGenerator(pool, workers).generate(dir);
+	}
+
 	/**
 	 * Updates an account balance with a delay before commit. Used to test
 	 * transaction isolation levels.
@@ -262,27 +552,50 @@ public class DatabaseTransactions {
 	 *                      if an error occurs
 	 */
 	public void updateAccountBalance(Connection con, int acctId, int amount, int delay) throws SQLException {
+		try (Operation op = begin("updateAccountBalance", AdmissionController.Kind.WRITE, con, null)) {
+			updateAccountBalance(con, acctId, amount, delay, op);
+		}
+	}
+
+	/**
+	 * Updates an account balance in an admitted updateAccountBalance call.
+	 */
+	private void updateAccountBalance(Connection con, int acctId, int amount, int delay,
+			Operation op) throws SQLException {
 		try {
-			PreparedStatement stmt = con.prepareStatement("UPDATE Account SET amount = ? WHERE acctId = ?");
+			PreparedStatement stmt = con
+					.prepareStatement("UPDATE Account SET amount = ? "
+							+ "OUTPUT inserted.cid, CAST(inserted.ver AS bigint) WHERE acctId = ?");
 			stmt.setInt(1, amount);
 			stmt.setInt(2, acctId);
 			System.out.println("Updating balance in account.");
-			stmt.executeUpdate();
+			checkpointBefore(con, "update");
+			ResultSet rs = stmt.executeQuery();
+			boolean updated = rs.next();
+			int cid = updated ? rs.getInt(1) : 0;
+			long version = updated ? rs.getLong(2) : 0;
+			stmt.close();
+			checkpointAfter(con, "update");
 			System.out.println("Update executed.");
 
-			// Perform a pause
+			// Perform a pause unless an interleaving orders the commit
 			try {
-				Thread.sleep(delay);
+				if (pauses && interleaving == null)
+					Thread.sleep(delay);
 			} catch (InterruptedException e) {
 				// Ignore any exception
 			}
 
 			System.out.println("Committing update.");
+			checkpointBefore(con, "commit update");
 			con.commit();
+			checkpointAfter(con, "commit update");
 			System.out.println("Update committed.");
+			if (updated)
+				feed.publish(acctId, cid, amount, version);
 		} catch (SQLException e) {
 			con.rollback();
-			throw e;
+			throw op.overloaded(e);
 		}
 	}
 
@@ -301,149 +614,970 @@ public class DatabaseTransactions {
 	 *                      if an error occurs
 	 */
 	public int readBalance(int acctId) throws SQLException {
-		// TODO: Read balance from given account id using a PreparedStatement
-		// Throw the following exception if the account is not found:
-		// throw new SQLException("Account "+acctId+" not found.");
-		// Use the con instance variable for the JDBC connection.
-		// Make sure to commit() if success or rollback if exception or account is not
-		// found.
-		try{
+		return readBalance(acctId, null);
+	}
+
+	/**
+	 * Reads and return balance (integer) from account with given id within a
+	 * deadline.
+	 * 
+	 * @param acctId
+	 *                 account id
+	 * @param deadline
+	 *                 deadline of the operation or null to wait indefinitely
+	 * @return
+	 *         account balance (integer)
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public int readBalance(int acctId, Deadline deadline) throws SQLException {
+		return readBalance(con, acctId, deadline);
+	}
+
+	/**
+	 * Reads and return balance (integer) from account with given id at a given
+	 * isolation level, on a connection from the isolation pools that is already
+	 * set to that level.
+	 * 
+	 * @param acctId
+	 *                  account id
+	 * @param isolation
+	 *                  isolation level, a Connection.TRANSACTION_ constant or
+	 *                  TRANSACTION_SNAPSHOT
+	 * @return
+	 *         account balance (integer)
+	 * @throws SQLException
+	 *                      if an error occurs or no isolation pools are installed
+	 */
+	public int readBalance(int acctId, int isolation) throws SQLException {
+		IsolationPools pools = pools();
+		Connection con = pools.borrow(isolation);
+		try {
+			return readBalance(con, acctId, null);
+		} finally {
+			pools.release(con);
+		}
+	}
+
+	/**
+	 * Reads the balance of an account on a given connection.
+	 * 
+	 * @param con
+	 *                 connection to use
+	 * @param acctId
+	 *                 account id
+	 * @param deadline
+	 *                 deadline of the operation or null to wait indefinitely
+	 * @return
+	 *         account balance (integer)
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private int readBalance(Connection con, int acctId, Deadline deadline) throws SQLException {
+		try (Operation op = begin("readBalance", AdmissionController.Kind.READ, con, deadline)) {
+			return readBalance(con, acctId, deadline, op);
+		}
+	}
+
+	/**
+	 * Reads the balance of an account in an admitted readBalance call.
+	 */
+	private int readBalance(Connection con, int acctId, Deadline deadline, Operation op)
+			throws SQLException {
+		int isolation = -1;
+		try {
+			isolation = downgradeToSnapshot(con, deadline);
 			PreparedStatement stmt = con.prepareStatement("SELECT amount FROM Account WHERE acctId = ?");
+			if (deadline != null) {
+				deadline.applyLockTimeout(con, "readBalance");
+				deadline.applyQueryTimeout(stmt, "readBalance");
+			}
 			stmt.setInt(1, acctId);
 			System.out.println("Returning balance in account.");
 			ResultSet rs = stmt.executeQuery();
-			if (!rs.next()) {
-				con.rollback();
-				throw new SQLException("No account records found.");
-			}
-			int[] values = new int[2];
-			int value = (int) rs.getInt(1);
-			values[0] = value;
+			if (!rs.next())
+				throw new SQLException("Account " + acctId + " not found.");
+			int value = rs.getInt(1);
 
-
-			System.out.println("Update executed.");	
-
-			System.out.println("Committing update.");
 			con.commit();
-			System.out.println("Update committed.");
 			return value;
-		}catch(SQLException e){
+		} catch (SQLException e) {
 			con.rollback();
-			throw new SQLException("Account " + acctId + " not found.");
+			throw op.overloaded(deadline == null ? e : deadline.translate(e, "readBalance"));
+		} finally {
+			restoreIsolation(con, deadline, isolation);
 		}
 	}
 
 	/**
-	 * Transfers a given amount from account acct1 to account acct2.
+	 * Sets the snapshot downgrade threshold. A read-only call whose deadline has
+	 * less time remaining than the threshold runs under SNAPSHOT isolation so it
+	 * reads row versions instead of waiting on locks held by writers.
 	 * 
-	 * @param amount
-	 *                 amount to transfer
-	 * @param acctFrom
-	 *                 id of account transfer from
-	 * @param acctTo
-	 *                 id of account transfer to
+	 * @param millis
+	 *               threshold in milliseconds, 0 to never downgrade
 	 */
-	public void transfer(int amount, int acctFrom, int acctTo) throws SQLException {
-		// TODO: Perform transfer using PreparedStatements.
-		// Use the con instance variable for the JDBC connection.
-		// Make sure to commit() if success or rollback if exception, account is not
-		// found, or insufficient funds.
+	public void setSnapshotDowngradeMillis(long millis) {
+		snapshotDowngradeMillis = millis;
+	}
 
-		try {
-			// TODO: Retrieve information on first account
-			PreparedStatement stmt = con.prepareStatement("SELECT * FROM Account WHERE acctId = ?");
-			stmt.setInt(1, acctFrom);
-			System.out.println("Returning information in account.");
-			ResultSet rs = stmt.executeQuery();
+	/**
+	 * Installs an admission controller in front of readBalance, transfer,
+	 * getTotals, updateAccountBalance and createAccount. Calls over the
+	 * concurrency limit wait a bounded time and are then rejected with an
+	 * AdmissionRejectedException.
+	 * 
+	 * @param admission
+	 *                  admission controller or null to admit every call
+	 */
+	public void setAdmissionController(AdmissionController admission) {
+		this.admission = admission;
+	}
 
-			// TODO: Throw the following exception if the account is not found:
-			// throw new SQLException("Account "+acctId+" not found.");
-			if (!rs.next()) {
-				con.rollback();
-				throw new SQLException("Account "+acctFrom+" not found.");
-			}
+	/**
+	 * Returns the installed admission controller.
+	 * 
+	 * @return
+	 *         admission controller or null if none
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
 
-			System.out.println("Committing update.");
-			con.commit();
-			System.out.println("Update committed.");
+	/**
+	 * Installs an interleaving that orders the checkpoints of getTotals ("read 1",
+	 * "read 2", "commit read"), updateAccountBalance ("update", "commit update")
+	 * and createAccount ("insert", "commit insert"). While installed these
+	 * operations skip their timed pauses.
+	 * 
+	 * @param interleaving
+	 *                     interleaving or null to use timed pauses
+	 */
+	public void setInterleaving(Interleaving interleaving) {
+		this.interleaving = interleaving;
+	}
 
-			// TODO: Retrieve information on second account
-			// TODO: Throw the following exception if the account is not found:
-			// throw new SQLException("Account "+acctId+" not found.");
-			stmt.setInt(1, acctTo);
-			System.out.println("Returning information in account.");
-			ResultSet rs2 = stmt.executeQuery();
+	/**
+	 * Turns the timed pauses of getTotals and updateAccountBalance on or off. The
+	 * pauses widen the window for concurrent operations. Measurements of the
+	 * operations themselves turn them off.
+	 * 
+	 * @param pauses
+	 *               false to skip the pauses
+	 */
+	public void setPauses(boolean pauses) {
+		this.pauses = pauses;
+	}
 
-			if (!rs2.next()) {
-				con.rollback();
-				throw new SQLException("Account "+acctTo+" not found.");
-			}
-			System.out.println("Committing update.");
-			con.commit();
-			System.out.println("Update committed.");
+	/**
+	 * Waits for the turn of a checkpoint if an interleaving is installed.
+	 * 
+	 * @param con
+	 *                   connection reaching the checkpoint
+	 * @param checkpoint
+	 *                   checkpoint name
+	 */
+	private void checkpointBefore(Connection con, String checkpoint) {
+		Interleaving interleaving = this.interleaving;
+		if (interleaving != null)
+			interleaving.before(con, checkpoint);
+	}
 
-			// TODO: Verify accounts belong to same customer id
-			// TODO: Throw the following exception if the accounts do not belong to the same
-			// customer
-			// throw new SQLException("Transfer failed because accounts do not belong to
-			// same customer.");
+	/**
+	 * Marks a checkpoint as completed if an interleaving is installed.
+	 * 
+	 * @param con
+	 *                   connection reaching the checkpoint
+	 * @param checkpoint
+	 *                   checkpoint name
+	 */
+	private void checkpointAfter(Connection con, String checkpoint) {
+		Interleaving interleaving = this.interleaving;
+		if (interleaving != null)
+			interleaving.after(con, checkpoint);
+	}
 
-			int fromCid = rs.getInt(2); 
-			System.out.println("hi.");
-			int toCid = rs2.getInt(2);
+	/**
+	 * Returns the publisher of committed balance changes. Subscribe to it instead
+	 * of polling queryBalance. Balances changed by transfer, updateAccountBalance,
+	 * createAccount, applyInterest and applyFee are delivered, with only the
+	 * latest balance of an account kept for a subscriber that has not requested
+	 * more.
+	 * 
+	 * @return
+	 *         balance change publisher
+	 */
+	public BalanceFeed getBalanceFeed() {
+		return feed;
+	}
 
-			if(fromCid != toCid){
-				con.rollback();
-				throw new SQLException("Transfer failed because accounts do not belong to same customer.");
-			}
-			System.out.println("Committing update.");
-			con.commit();
-			System.out.println("Update committed.");
+	/**
+	 * Installs connection pools by isolation level, used by transferAt and by the
+	 * readBalance and getTotals overloads that take an isolation level.
+	 * 
+	 * @param pools
+	 *              isolation pools or null to remove them
+	 */
+	public void setIsolationPools(IsolationPools pools) {
+		this.isolationPools = pools;
+	}
 
-			// TODO: Verify that have sufficient funds to perform transfer
-			// TODO: Throw the following exception if there are insufficient funds to
-			// perform the transfer
-			// throw new SQLException("Transfer failed because of insufficient balance.");
-			int fromvalue = rs.getInt(3);
+	/**
+	 * Returns the installed isolation pools.
+	 * 
+	 * @return
+	 *         isolation pools or null if not installed
+	 */
+	public IsolationPools getIsolationPools() {
+		return isolationPools;
+	}
 
-			if(fromvalue < amount){
-				con.rollback();
-				throw new SQLException("Transfer failed because of insufficient balance.");
-			}
+	/**
+	 * Returns the installed isolation pools or fails if there are none.
+	 */
+	private IsolationPools pools() throws SQLException {
+		IsolationPools pools = isolationPools;
+		if (pools == null)
+			throw new SQLException("No isolation pools installed.");
+		return pools;
+	}
 
-			System.out.println("Committing update.");
-			con.commit();
-			System.out.println("Update committed.");
+	/**
+	 * Installs a JDBC profiler. Connections opened by connect() afterwards are
+	 * wrapped so the prepares, executes, commits, rollbacks, rows and bytes of
+	 * each operation, and the time spent in each, are added to the profiler's
+	 * breakdown.
+	 * 
+	 * @param profiler
+	 *                 profiler or null to stop wrapping new connections
+	 */
+	public void setJdbcProfiler(JdbcProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Returns the installed JDBC profiler.
+	 * 
+	 * @return
+	 *         profiler or null if off
+	 */
+	public JdbcProfiler getJdbcProfiler() {
+		return profiler;
+	}
 
-			// TODO: Update balances and commit transaction
-			PreparedStatement stmt2 = con.prepareStatement("UPDATE Account SET amount = ? WHERE acctId = ?");
+	/**
+	 * Installs a lock wait diagnostics sampler. Every operation is watched while
+	 * it runs and its lock waits are added to the sampler's breakdown.
+	 * 
+	 * @param diagnostics
+	 *                    diagnostics sampler or null to turn diagnostics off
+	 */
+	public void setLockDiagnostics(LockDiagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+	}
 
-			int tovalue = rs2.getInt(3);
-			
-			int frombalance = fromvalue - amount;
-			int tobalance = tovalue + amount;
+	/**
+	 * Returns the installed lock wait diagnostics sampler.
+	 * 
+	 * @return
+	 *         diagnostics sampler or null if off
+	 */
+	public LockDiagnostics getLockDiagnostics() {
+		return diagnostics;
+	}
 
-			stmt2.setInt(1, frombalance);
-			stmt2.setInt(2, acctFrom);
+	/**
+	 * Starts counting the JDBC calls of an operation.
+	 * 
+	 * @param operation
+	 *                  name of the operation
+	 * @return
+	 *         scope to close when the operation completes
+	 */
+	private JdbcProfiler.Scope profile(String operation) {
+		JdbcProfiler profiler = this.profiler;
+		return profiler == null ? JdbcProfiler.NONE : profiler.begin(operation);
+	}
+
+	/**
+	 * Starts watching an operation for lock waits.
+	 * 
+	 * @param operation
+	 *                  name of the operation
+	 * @param con
+	 *                  connection the operation runs on
+	 * @return
+	 *         scope to close when the operation completes
+	 */
+	private LockDiagnostics.Scope diagnose(String operation, Connection con) {
+		LockDiagnostics diagnostics = this.diagnostics;
+		return diagnostics == null ? LockDiagnostics.NONE : diagnostics.begin(operation, con);
+	}
+
+	/**
+	 * Waits for admission of an operation.
+	 * 
+	 * @param kind
+	 *                 kind of operation
+	 * @param deadline
+	 *                 deadline of the operation or null
+	 * @return
+	 *         permit to release when the operation completes
+	 * @throws AdmissionRejectedException
+	 *                                    if the operation is shed
+	 */
+	private AdmissionController.Permit admit(AdmissionController.Kind kind, Deadline deadline)
+			throws AdmissionRejectedException {
+		AdmissionController admission = this.admission;
+		return admission == null ? AdmissionController.NONE : admission.acquire(kind, deadline);
+	}
+
+	/**
+	 * Admits an operation and starts its lock diagnostics and JDBC profiling.
+	 * 
+	 * @param name
+	 *                 name of the operation
+	 * @param kind
+	 *                 kind of operation
+	 * @param con
+	 *                 connection the operation runs on
+	 * @param deadline
+	 *                 deadline of the operation or null
+	 * @return
+	 *         operation to close when it completes
+	 * @throws AdmissionRejectedException
+	 *                                    if the operation is shed
+	 */
+	private Operation begin(String name, AdmissionController.Kind kind, Connection con, Deadline deadline)
+			throws AdmissionRejectedException {
+		AdmissionController.Permit permit = admit(kind, deadline);
+		LockDiagnostics.Scope scope = null;
+		try {
+			scope = diagnose(name, con);
+			return new Operation(permit, scope, profile(name));
+		} catch (RuntimeException e) {
+			if (scope != null)
+				scope.close();
+			permit.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Switches the connection to SNAPSHOT isolation if the deadline is tighter
+	 * than the snapshot downgrade threshold.
+	 * 
+	 * @param con
+	 *                 connection to use
+	 * @param deadline
+	 *                 deadline of the operation or null
+	 * @return
+	 *         previous isolation level or -1 if the isolation level is unchanged
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private int downgradeToSnapshot(Connection con, Deadline deadline) throws SQLException {
+		if (deadline == null || deadline.remainingMillis() >= snapshotDowngradeMillis)
+			return -1;
+		int isolation = con.getTransactionIsolation();
+		if (isolation == TRANSACTION_SNAPSHOT)
+			return -1;
+		System.out.println("Deadline is tight, reading with SNAPSHOT isolation.");
+		con.setTransactionIsolation(TRANSACTION_SNAPSHOT);
+		return isolation;
+	}
+
+	/**
+	 * Undoes the per-call settings made for a deadline.
+	 * 
+	 * @param con
+	 *                  connection to use
+	 * @param deadline
+	 *                  deadline of the operation or null
+	 * @param isolation
+	 *                  isolation level to restore or -1 if unchanged
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private static void restoreIsolation(Connection con, Deadline deadline, int isolation) throws SQLException {
+		if (deadline != null)
+			Deadline.clearLockTimeout(con);
+		if (isolation != -1)
+			con.setTransactionIsolation(isolation);
+	}
+
+	/**
+	 * Transfers a given amount from account acct1 to account acct2.
+	 * 
+	 * @param amount
+	 *                 amount to transfer
+	 * @param acctFrom
+	 *                 id of account transfer from
+	 * @param acctTo
+	 *                 id of account transfer to
+	 */
+	public void transfer(int amount, int acctFrom, int acctTo) throws SQLException {
+		transfer(amount, acctFrom, acctTo, null);
+	}
+
+	/**
+	 * Transfers a given amount from account acct1 to account acct2 at most once
+	 * for a given client request id. The request id is recorded in the
+	 * TransferRequest table in the same transaction as the balance updates. A
+	 * retry with the same request id returns the original outcome: it completes
+	 * normally if the original transfer committed or throws an exception with the
+	 * original message if it failed.
+	 * 
+	 * @param amount
+	 *                  amount to transfer
+	 * @param acctFrom
+	 *                  id of account transfer from
+	 * @param acctTo
+	 *                  id of account transfer to
+	 * @param requestId
+	 *                  client request id of at most 64 characters or null if retries
+	 *                  are not deduplicated
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public void transfer(int amount, int acctFrom, int acctTo, String requestId) throws SQLException {
+		transfer(amount, acctFrom, acctTo, requestId, null);
+	}
+
+	/**
+	 * Transfers a given amount from account acct1 to account acct2 within a
+	 * deadline. A transfer that cannot get its locks or finish its statements
+	 * before the deadline is rolled back and fails with an
+	 * OperationTimeoutException. A timed out transfer records no outcome so it is
+	 * safe to retry with the same request id.
+	 * 
+	 * @param amount
+	 *                  amount to transfer
+	 * @param acctFrom
+	 *                  id of account transfer from
+	 * @param acctTo
+	 *                  id of account transfer to
+	 * @param requestId
+	 *                  client request id of at most 64 characters or null if retries
+	 *                  are not deduplicated
+	 * @param deadline
+	 *                  deadline of the operation or null to wait indefinitely
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public void transfer(int amount, int acctFrom, int acctTo, String requestId, Deadline deadline)
+			throws SQLException {
+		transfer(con, amount, acctFrom, acctTo, requestId, deadline);
+	}
+
+	/**
+	 * Transfers a given amount from account acct1 to account acct2 at a given
+	 * isolation level, on a connection from the isolation pools that is already
+	 * set to that level.
+	 * 
+	 * @param amount
+	 *                  amount to transfer
+	 * @param acctFrom
+	 *                  id of account transfer from
+	 * @param acctTo
+	 *                  id of account transfer to
+	 * @param isolation
+	 *                  isolation level, a Connection.TRANSACTION_ constant or
+	 *                  TRANSACTION_SNAPSHOT
+	 * @throws SQLException
+	 *                      if an error occurs or no isolation pools are installed
+	 */
+	public void transferAt(int amount, int acctFrom, int acctTo, int isolation) throws SQLException {
+		IsolationPools pools = pools();
+		Connection con = pools.borrow(isolation);
+		try {
+			transfer(con, amount, acctFrom, acctTo, null, null);
+		} finally {
+			pools.release(con);
+		}
+	}
+
+	/**
+	 * Transfers a given amount between accounts on a given connection.
+	 * 
+	 * @param con
+	 *                  connection to use
+	 * @param amount
+	 *                  amount to transfer
+	 * @param acctFrom
+	 *                  id of account transfer from
+	 * @param acctTo
+	 *                  id of account transfer to
+	 * @param requestId
+	 *                  client request id or null if retries are not deduplicated
+	 * @param deadline
+	 *                  deadline of the operation or null to wait indefinitely
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private void transfer(Connection con, int amount, int acctFrom, int acctTo, String requestId,
+			Deadline deadline) throws SQLException {
+		if (requestId != null) {
+			TransferDedup.checkRequestId(requestId);
+			String outcome = dedup.lookup(requestId);
+			if (outcome == null && dedup.mightContain(requestId))
+				outcome = readTransferOutcome(con, requestId);
+			if (outcome != null) {
+				System.out.println("Duplicate transfer request " + requestId + ".");
+				replayTransferOutcome(outcome);
+				return;
+			}
+		}
+
+		try (Operation op = begin("transfer", AdmissionController.Kind.WRITE, con, deadline)) {
+			transfer(con, amount, acctFrom, acctTo, requestId, deadline, op);
+		}
+	}
+
+	/**
+	 * Performs the balance updates of an admitted transfer.
+	 */
+	private void transfer(Connection con, int amount, int acctFrom, int acctTo, String requestId,
+			Deadline deadline, Operation op) throws SQLException {
+		Savepoint claimed = null;
+		try {
+			if (deadline != null)
+				deadline.applyLockTimeout(con, "transfer");
+			if (requestId != null) {
+				// Claim the request id first so a concurrent duplicate waits on the key
+				PreparedStatement claim = con
+						.prepareStatement("INSERT INTO TransferRequest (requestId, outcome) VALUES (?, ?)");
+				claim.setString(1, requestId);
+				claim.setString(2, TransferDedup.SUCCESS);
+				if (deadline != null)
+					deadline.applyQueryTimeout(claim, "transfer");
+				try {
+					claim.executeUpdate();
+				} catch (SQLException e) {
+					if (e.getErrorCode() != DUPLICATE_KEY_ERROR)
+						throw e;
+					con.rollback();
+					String outcome = readTransferOutcome(con, requestId);
+					System.out.println("Duplicate transfer request " + requestId + ".");
+					replayTransferOutcome(outcome);
+					return;
+				}
+				claimed = con.setSavepoint();
+			}
 
-			stmt2.setInt(1, tobalance);
-			stmt2.setInt(2, acctTo);
+			// Validate ownership from the in-memory index
+			int fromCid = ownerOf(con, acctFrom);
+			if (fromCid == OwnershipIndex.MISSING)
+				throw new TransferRejectedException("Account " + acctFrom + " not found.");
+			int toCid = ownerOf(con, acctTo);
+			if (toCid == OwnershipIndex.MISSING)
+				throw new TransferRejectedException("Account " + acctTo + " not found.");
+
+			// Verify accounts belong to same customer id, confirming a mismatch in the
+			// database since the index may be stale and a rejection may be recorded
+			if (fromCid != toCid || fromCid == OwnershipIndex.NO_OWNER) {
+				fromCid = readOwner(con, acctFrom);
+				if (fromCid == OwnershipIndex.MISSING)
+					throw new TransferRejectedException("Account " + acctFrom + " not found.");
+				toCid = readOwner(con, acctTo);
+				if (toCid == OwnershipIndex.MISSING)
+					throw new TransferRejectedException("Account " + acctTo + " not found.");
+				if (fromCid != toCid || fromCid == OwnershipIndex.NO_OWNER)
+					throw new TransferRejectedException(
+							"Transfer failed because accounts do not belong to same customer.");
+			}
 
+			// Debit only if the owner is unchanged and the balance covers the amount
+			PreparedStatement debit = con.prepareStatement("UPDATE Account SET amount = amount - ? "
+					+ "OUTPUT inserted.amount, CAST(inserted.ver AS bigint) "
+					+ "WHERE acctId = ? AND cid = ? AND amount >= ?");
+			if (deadline != null)
+				deadline.applyQueryTimeout(debit, "transfer");
+			debit.setInt(1, amount);
+			debit.setInt(2, acctFrom);
+			debit.setInt(3, fromCid);
+			debit.setInt(4, amount);
 			System.out.println("Updating balance in account.");
-			stmt.executeUpdate();
+			ResultSet rs = debit.executeQuery();
+			boolean debited = rs.next();
+			int fromBalance = debited ? rs.getInt(1) : 0;
+			long fromVersion = debited ? rs.getLong(2) : 0;
+			debit.close();
+			if (!debited)
+				rejectTransfer(con, acctFrom, fromCid, true);
+
+			PreparedStatement credit = con.prepareStatement("UPDATE Account SET amount = amount + ? "
+					+ "OUTPUT inserted.amount, CAST(inserted.ver AS bigint) WHERE acctId = ? AND cid = ?");
+			if (deadline != null)
+				deadline.applyQueryTimeout(credit, "transfer");
+			credit.setInt(1, amount);
+			credit.setInt(2, acctTo);
+			credit.setInt(3, toCid);
+			System.out.println("Updating balance in account.");
+			ResultSet rs2 = credit.executeQuery();
+			boolean credited = rs2.next();
+			int toBalance = credited ? rs2.getInt(1) : 0;
+			long toVersion = credited ? rs2.getLong(2) : 0;
+			credit.close();
+			if (!credited)
+				rejectTransfer(con, acctTo, toCid, false);
 			System.out.println("Update executed.");
 
+			if (deadline != null)
+				deadline.check("transfer");
 			System.out.println("Committing update.");
 			con.commit();
 			System.out.println("Update committed.");
+			if (requestId != null)
+				dedup.record(requestId, TransferDedup.SUCCESS);
+			feed.publish(acctFrom, fromCid, fromBalance, fromVersion);
+			feed.publish(acctTo, toCid, toBalance, toVersion);
+		} catch (TransferRejectedException e) {
+			if (claimed != null)
+				recordTransferOutcome(con, claimed, requestId, e.getMessage());
+			else
+				con.rollback();
+			throw new SQLException(e.getMessage());
+		} catch (SQLException e) {
+			con.rollback();
+			throw op.overloaded(deadline == null ? e : deadline.translate(e, "transfer"));
+		} catch (RuntimeException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			if (deadline != null)
+				Deadline.clearLockTimeout(con);
+		}
+	}
 
+	/**
+	 * Returns the owner of an account from the ownership index, loading the index
+	 * on first use. The index is loaded on a connection of its own so the full
+	 * scan takes no locks in the transfer's transaction. An account missing from
+	 * the index is looked up in the database in case it was created by another
+	 * process.
+	 *
+	 * @param con
+	 *               connection to use
+	 * @param acctId
+	 *               account id
+	 * @return
+	 *         cid of the owner, OwnershipIndex.NO_OWNER if the account has no
+	 *         owner or OwnershipIndex.MISSING if the account does not exist
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private int ownerOf(Connection con, int acctId) throws SQLException {
+		if (!owners.isLoaded()) {
+			try (Connection loader = openConnection()) {
+				owners.load(loader);
+				loader.commit();
+			}
+		}
+		int cid = owners.get(acctId);
+		if (cid != OwnershipIndex.MISSING)
+			return cid;
+		return readOwner(con, acctId);
+	}
 
-		} catch (Exception e) {
+	/**
+	 * Reads the owner of an account from the database and corrects the ownership
+	 * index.
+	 *
+	 * @param con
+	 *               connection of the transfer
+	 * @param acctId
+	 *               account id
+	 * @return
+	 *         cid of the owner, OwnershipIndex.NO_OWNER if the account has no
+	 *         owner or OwnershipIndex.MISSING if the account does not exist
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private int readOwner(Connection con, int acctId) throws SQLException {
+		PreparedStatement stmt = con.prepareStatement("SELECT cid FROM Account WHERE acctId = ?");
+		stmt.setInt(1, acctId);
+		ResultSet rs = stmt.executeQuery();
+		int cid = OwnershipIndex.MISSING;
+		if (rs.next()) {
+			cid = rs.getInt(1);
+			if (rs.wasNull())
+				cid = OwnershipIndex.NO_OWNER;
+		}
+		stmt.close();
+		if (cid == OwnershipIndex.MISSING)
+			owners.remove(acctId);
+		else
+			owners.put(acctId, cid);
+		return cid;
+	}
+
+	/**
+	 * Finds out why a transfer UPDATE matched no row and rejects the transfer.
+	 * Corrects the ownership index if the account was deleted or changed owner.
+	 *
+	 * @param con
+	 *                 connection of the transfer
+	 * @param acctId
+	 *                 account id of the UPDATE
+	 * @param cid
+	 *                 owner expected by the ownership index
+	 * @param debit
+	 *                 true if the UPDATE was the debit, which also checks the
+	 *                 balance
+	 * @throws SQLException
+	 *                      always, TransferRejectedException with the reason
+	 */
+	private void rejectTransfer(Connection con, int acctId, int cid, boolean debit) throws SQLException {
+		int actual = readOwner(con, acctId);
+		if (actual == OwnershipIndex.MISSING)
+			throw new TransferRejectedException("Account " + acctId + " not found.");
+		if (actual != cid)
+			throw new TransferRejectedException("Transfer failed because accounts do not belong to same customer.");
+		if (debit)
+			throw new TransferRejectedException("Transfer failed because of insufficient balance.");
+		throw new SQLException("Account " + acctId + " was not updated.");
+	}
+
+	/**
+	 * Performs an amount transfer at most once for a given client request id and
+	 * returns result in String form.
+	 * 
+	 * @param amount
+	 *                  amount to transfer, negative values are possible
+	 * @param acctFrom
+	 *                  id of account to transfer from
+	 * @param acctTo
+	 *                  id of account to transfer to
+	 * @param requestId
+	 *                  client request id
+	 * @return
+	 *         success message or error if failed
+	 */
+	public String doTransfer(int amount, int acctFrom, int acctTo, String requestId) {
+		try {
+			transfer(amount, acctFrom, acctTo, requestId);
+			return "Transferred " + amount + " from account " + acctFrom + " to " + acctTo;
+		} catch (SQLException e) {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Deletes transfer request ids older than the dedup window. Retries of those
+	 * requests are no longer recognized as duplicates. The in-memory dedup state
+	 * is rebuilt from the ids that remain.
+	 * 
+	 * @param windowSeconds
+	 *                      dedup window in seconds
+	 * @return
+	 *         number of request ids deleted
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public int purgeTransferRequests(int windowSeconds) throws SQLException {
+		try {
+			PreparedStatement stmt = con.prepareStatement(
+					"DELETE FROM TransferRequest WHERE created < DATEADD(second, -?, CURRENT_TIMESTAMP)");
+			stmt.setInt(1, windowSeconds);
+			int count = stmt.executeUpdate();
+			stmt.close();
+
+			List<String> remaining = new ArrayList<>();
+			Statement ids = con.createStatement();
+			ResultSet rs = ids.executeQuery("SELECT requestId FROM TransferRequest");
+			while (rs.next())
+				remaining.add(rs.getString(1));
+			ids.close();
+			con.commit();
+			dedup.rebuild(remaining);
+			return count;
+		} catch (SQLException e) {
 			con.rollback();
 			throw e;
 		}
 	}
 
+	/**
+	 * Adds interest to every account of a type in chunks that commit separately.
+	 * Running the same job name again resumes an interrupted job and does nothing
+	 * for a finished one. The new balances are published to balance subscribers
+	 * as each chunk commits.
+	 *
+	 * @param jobName
+	 *                    name of the job, for example "interest-2024-01"
+	 * @param accType
+	 *                    account type
+	 * @param basisPoints
+	 *                    interest in basis points (1/100 of a percent) of the
+	 *                    balance
+	 * @return
+	 *         number of accounts adjusted by this run
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public long applyInterest(String jobName, int accType, int basisPoints) throws SQLException {
+		BulkBalanceJob job = new BulkBalanceJob(con, jobName, accType, basisPoints, 0);
+		job.setBalanceFeed(feed);
+		return job.run();
+	}
+
+	/**
+	 * Charges a fixed fee to every account of a type in chunks that commit
+	 * separately. Running the same job name again resumes an interrupted job and
+	 * does nothing for a finished one. The new balances are published to balance
+	 * subscribers as each chunk commits.
+	 *
+	 * @param jobName
+	 *                name of the job, for example "fee-2024-01"
+	 * @param accType
+	 *                account type
+	 * @param fee
+	 *                fee subtracted from each balance
+	 * @return
+	 *         number of accounts adjusted by this run
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public long applyFee(String jobName, int accType, int fee) throws SQLException {
+		BulkBalanceJob job = new BulkBalanceJob(con, jobName, accType, 0, -fee);
+		job.setBalanceFeed(feed);
+		return job.run();
+	}
+
+	/**
+	 * Reads the recorded outcome of a transfer request id.
+	 * 
+	 * @param con
+	 *                  connection to use
+	 * @param requestId
+	 *                  client request id
+	 * @return
+	 *         outcome or null if the request id is not recorded
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	private String readTransferOutcome(Connection con, String requestId) throws SQLException {
+		try {
+			PreparedStatement stmt = con.prepareStatement("SELECT outcome FROM TransferRequest WHERE requestId = ?");
+			stmt.setString(1, requestId);
+			ResultSet rs = stmt.executeQuery();
+			String outcome = rs.next() ? rs.getString(1) : null;
+			con.commit();
+			if (outcome != null)
+				dedup.record(requestId, outcome);
+			return outcome;
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+	}
+
+	/**
+	 * Records the outcome of a transfer request that failed. The balance updates
+	 * are rolled back to the savepoint taken after the request id was claimed and
+	 * the claim is committed with the error as its outcome, so a duplicate waiting
+	 * on the claim replays the error instead of running the transfer.
+	 * 
+	 * @param con
+	 *                  connection to use
+	 * @param claimed
+	 *                  savepoint taken after the request id was claimed
+	 * @param requestId
+	 *                  client request id
+	 * @param outcome
+	 *                  error message of the failed transfer
+	 */
+	private void recordTransferOutcome(Connection con, Savepoint claimed, String requestId, String outcome) {
+		try {
+			con.rollback(claimed);
+			PreparedStatement stmt = con.prepareStatement("UPDATE TransferRequest SET outcome = ? WHERE requestId = ?");
+			stmt.setString(1, outcome);
+			stmt.setString(2, requestId);
+			stmt.executeUpdate();
+			stmt.close();
+			con.commit();
+			dedup.record(requestId, outcome);
+		} catch (SQLException e) {
+			System.err.println("SQLException: " + e);
+			try {
+				con.rollback();
+			} catch (SQLException ex) {
+				System.err.println("SQLException: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns normally if the original transfer succeeded or throws its original
+	 * error.
+	 * 
+	 * @param outcome
+	 *                recorded outcome
+	 * @throws SQLException
+	 *                      if the original transfer failed
+	 */
+	private static void replayTransferOutcome(String outcome) throws SQLException {
+		if (!TransferDedup.SUCCESS.equals(outcome))
+			throw new SQLException(outcome);
+	}
+
+	/**
+	 * Admission permit, lock diagnostics and JDBC profiling of one operation call.
+	 * Closing it ends profiling and diagnostics and then releases the permit.
+	 */
+	private static class Operation implements AutoCloseable {
+		private final AdmissionController.Permit permit;
+
+		private final LockDiagnostics.Scope diagnostics;
+
+		private final JdbcProfiler.Scope profile;
+
+		Operation(AdmissionController.Permit permit, LockDiagnostics.Scope diagnostics, JdbcProfiler.Scope profile) {
+			this.permit = permit;
+			this.diagnostics = diagnostics;
+			this.profile = profile;
+		}
+
+		/**
+		 * Reports a timeout to the admission controller so it lowers its limit.
+		 * 
+		 * @param e
+		 *          exception the operation failed with
+		 * @return
+		 *         the exception
+		 */
+		SQLException overloaded(SQLException e) {
+			if (AdmissionController.isOverload(e))
+				permit.overloaded();
+			return e;
+		}
+
+		@Override
+		public void close() {
+			try {
+				profile.close();
+			} finally {
+				try {
+					diagnostics.close();
+				} finally {
+					permit.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Signals a transfer that failed validation and whose outcome is final.
+	 */
+	private static class TransferRejectedException extends SQLException {
+		private static final long serialVersionUID = 1L;
+
+		TransferRejectedException(String reason) {
+			super(reason);
+		}
+	}
+
 	/*
 	 * Modify these methods to pass isolation level tests. See
 	 * TestTransactions.testIsolationLevel for more details.
@@ -0,0 +1,166 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+
+/**
+ * Time budget for a single transaction operation. The remaining time is mapped
+ * onto SQL Server's session lock timeout (SET LOCK_TIMEOUT) so that lock waits
+ * fail fast, and onto the JDBC query timeout so that the driver cancels a
+ * statement that runs past the deadline.
+ */
+public class Deadline {
+	/**
+	 * SQL Server error code for "Lock request time out period exceeded"
+	 */
+	public static final int LOCK_TIMEOUT_ERROR = 1222;
+
+	/**
+	 * SQL state reported by the driver when a query is cancelled by its timeout
+	 */
+	private static final String QUERY_TIMEOUT_STATE = "HY008";
+
+	/**
+	 * Length of the deadline in milliseconds
+	 */
+	private final long millis;
+
+	/**
+	 * System.nanoTime() at which the deadline expires
+	 */
+	private final long expiresAt;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param millis
+	 *               length of the deadline in milliseconds
+	 */
+	private Deadline(long millis) {
+		this.millis = millis;
+		this.expiresAt = System.nanoTime() + millis * 1000000L;
+	}
+
+	/**
+	 * Returns a deadline that expires the given number of milliseconds from now.
+	 * 
+	 * @param millis
+	 *               time budget in milliseconds
+	 * @return
+	 *         deadline
+	 */
+	public static Deadline in(long millis) {
+		return new Deadline(millis);
+	}
+
+	/**
+	 * Returns the length of the deadline.
+	 * 
+	 * @return
+	 *         time budget in milliseconds
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * Returns the time left before the deadline expires.
+	 * 
+	 * @return
+	 *         remaining milliseconds, zero if expired
+	 */
+	public long remainingMillis() {
+		return Math.max(0, (expiresAt - System.nanoTime()) / 1000000L);
+	}
+
+	/**
+	 * Throws a timeout exception if the deadline has expired.
+	 * 
+	 * @param operation
+	 *                  name of the operation being performed
+	 * @throws OperationTimeoutException
+	 *                                   if the deadline has expired
+	 */
+	public void check(String operation) throws OperationTimeoutException {
+		if (System.nanoTime() - expiresAt >= 0)
+			throw new OperationTimeoutException(operation, millis, null);
+	}
+
+	/**
+	 * Sets the session lock timeout to the remaining time so a blocked statement
+	 * fails with error 1222 instead of waiting for the lock.
+	 * 
+	 * @param con
+	 *                  connection to use
+	 * @param operation
+	 *                  name of the operation being performed
+	 * @throws SQLException
+	 *                      if an error occurs or the deadline has expired
+	 */
+	public void applyLockTimeout(Connection con, String operation) throws SQLException {
+		check(operation);
+		Statement stmt = con.createStatement();
+		try {
+			stmt.execute("SET LOCK_TIMEOUT " + Math.max(1, remainingMillis()));
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Restores the default session lock timeout of waiting indefinitely.
+	 * 
+	 * @param con
+	 *            connection to use
+	 */
+	public static void clearLockTimeout(Connection con) {
+		try {
+			Statement stmt = con.createStatement();
+			try {
+				stmt.execute("SET LOCK_TIMEOUT -1");
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("SQLException: " + e);
+		}
+	}
+
+	/**
+	 * Sets the query timeout of a statement to the remaining time. JDBC query
+	 * timeouts are in whole seconds so the timeout is rounded up.
+	 * 
+	 * @param stmt
+	 *                  statement to be executed
+	 * @param operation
+	 *                  name of the operation being performed
+	 * @throws SQLException
+	 *                      if an error occurs or the deadline has expired
+	 */
+	public void applyQueryTimeout(Statement stmt, String operation) throws SQLException {
+		check(operation);
+		stmt.setQueryTimeout((int) ((remainingMillis() + 999) / 1000));
+	}
+
+	/**
+	 * Converts a lock timeout or query cancellation reported by the driver into
+	 * an OperationTimeoutException. Other exceptions are returned unchanged.
+	 * 
+	 * @param e
+	 *                  exception thrown by the driver
+	 * @param operation
+	 *                  name of the operation being performed
+	 * @return
+	 *         exception to throw
+	 */
+	public SQLException translate(SQLException e, String operation) {
+		if (e instanceof OperationTimeoutException)
+			return e;
+		if (e.getErrorCode() == LOCK_TIMEOUT_ERROR || e instanceof SQLTimeoutException
+				|| QUERY_TIMEOUT_STATE.equals(e.getSQLState()))
+			return new OperationTimeoutException(operation, millis, e);
+		return e;
+	}
+}
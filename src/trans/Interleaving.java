@@ -0,0 +1,304 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drives an exact interleaving of operations on several connections, replacing
+ * sleeps in concurrency tests. Operations call before() and after() around each
+ * named checkpoint ("read 1", "update", "commit read", ...). A checkpoint listed
+ * in the script waits until every earlier step of the script has completed.
+ *
+ * A step whose statement is blocked on the server would hold up the script
+ * forever, so while a thread waits its turn the scheduler polls
+ * sys.dm_exec_requests for running steps that are blocked by another session.
+ * The actor of a blocked step is set aside: later steps of other actors may run
+ * and the actor rejoins the script once its statement returns. Whether a step
+ * was blocked is recorded and can be asserted on.
+ */
+public class Interleaving {
+	/**
+	 * Interval between checks for blocked steps in milliseconds
+	 */
+	private static final long POLL_MILLIS = 5;
+
+	/**
+	 * Longest time a step waits for its turn before the script is considered
+	 * stuck
+	 */
+	private static final long STUCK_MILLIS = 30000;
+
+	/**
+	 * Connection used to look for blocked sessions
+	 */
+	private final Connection monitor;
+
+	/**
+	 * Actor name by connection
+	 */
+	private final Map<Connection, String> actors = new HashMap<>();
+
+	/**
+	 * Session id by actor name
+	 */
+	private final Map<String, Integer> sessions = new HashMap<>();
+
+	/**
+	 * Script as "actor:checkpoint" in order
+	 */
+	private final List<String> steps = new ArrayList<>();
+
+	/**
+	 * Steps that have completed
+	 */
+	private final Set<String> done = new HashSet<>();
+
+	/**
+	 * Step each actor is currently executing
+	 */
+	private final Map<String, String> running = new HashMap<>();
+
+	/**
+	 * Actors whose running step is blocked on the server
+	 */
+	private final Set<String> blocked = new HashSet<>();
+
+	/**
+	 * Steps that were blocked on the server at some point
+	 */
+	private final Set<String> wasBlocked = new HashSet<>();
+
+	/**
+	 * Completed steps in completion order
+	 */
+	private final List<String> trace = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param monitor
+	 *                connection used to look for blocked sessions, not used by any
+	 *                actor
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public Interleaving(Connection monitor) throws SQLException {
+		this.monitor = monitor;
+		monitor.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+	}
+
+	/**
+	 * Registers the connection used by an actor.
+	 *
+	 * @param name
+	 *             actor name
+	 * @param con
+	 *             connection of the actor
+	 * @return
+	 *         this interleaving
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public Interleaving actor(String name, Connection con) throws SQLException {
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT @@SPID");
+		rs.next();
+		int session = rs.getInt(1);
+		stmt.close();
+		synchronized (this) {
+			actors.put(con, name);
+			sessions.put(name, session);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a step to the script.
+	 *
+	 * @param actor
+	 *                   actor name
+	 * @param checkpoint
+	 *                   checkpoint name
+	 * @return
+	 *         this interleaving
+	 */
+	public synchronized Interleaving step(String actor, String checkpoint) {
+		steps.add(actor + ":" + checkpoint);
+		return this;
+	}
+
+	/**
+	 * Waits until a checkpoint may run. Returns immediately for checkpoints that
+	 * are not in the script.
+	 *
+	 * @param con
+	 *                   connection reaching the checkpoint
+	 * @param checkpoint
+	 *                   checkpoint name
+	 */
+	public void before(Connection con, String checkpoint) {
+		String actor;
+		String step;
+		synchronized (this) {
+			actor = actors.get(con);
+			step = actor + ":" + checkpoint;
+			if (actor == null || !steps.contains(step))
+				return;
+		}
+		long start = System.currentTimeMillis();
+		while (true) {
+			synchronized (this) {
+				if (canRun(step)) {
+					running.put(actor, step);
+					return;
+				}
+				if (System.currentTimeMillis() - start > STUCK_MILLIS)
+					throw new IllegalStateException("Interleaving stuck before " + step + ", completed " + trace
+							+ ", blocked " + blocked + ".");
+				try {
+					wait(POLL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted before " + step + ".");
+				}
+			}
+			detectBlocked();
+		}
+	}
+
+	/**
+	 * Marks a checkpoint as completed.
+	 *
+	 * @param con
+	 *                   connection reaching the checkpoint
+	 * @param checkpoint
+	 *                   checkpoint name
+	 */
+	public synchronized void after(Connection con, String checkpoint) {
+		String actor = actors.get(con);
+		String step = actor + ":" + checkpoint;
+		if (actor == null || !steps.contains(step))
+			return;
+		running.remove(actor);
+		blocked.remove(actor);
+		done.add(step);
+		trace.add(step);
+		notifyAll();
+	}
+
+	/**
+	 * Returns true if a step was blocked on the server.
+	 *
+	 * @param actor
+	 *                   actor name
+	 * @param checkpoint
+	 *                   checkpoint name
+	 * @return
+	 *         true if the step waited on another session
+	 */
+	public synchronized boolean wasBlocked(String actor, String checkpoint) {
+		return wasBlocked.contains(actor + ":" + checkpoint);
+	}
+
+	/**
+	 * Returns true if the first step completed before the second.
+	 *
+	 * @param actor1
+	 *                    actor of the first step
+	 * @param checkpoint1
+	 *                    checkpoint of the first step
+	 * @param actor2
+	 *                    actor of the second step
+	 * @param checkpoint2
+	 *                    checkpoint of the second step
+	 * @return
+	 *         true if the first step completed and the second did not complete
+	 *         earlier
+	 */
+	public synchronized boolean completedBefore(String actor1, String checkpoint1, String actor2,
+			String checkpoint2) {
+		int first = trace.indexOf(actor1 + ":" + checkpoint1);
+		int second = trace.indexOf(actor2 + ":" + checkpoint2);
+		return first != -1 && (second == -1 || first < second);
+	}
+
+	/**
+	 * Returns the completed steps in completion order.
+	 *
+	 * @return
+	 *         steps as "actor:checkpoint"
+	 */
+	public synchronized List<String> getTrace() {
+		return new ArrayList<>(trace);
+	}
+
+	/**
+	 * A step may run once every earlier step has completed or belongs to an actor
+	 * that is blocked on the server.
+	 */
+	private boolean canRun(String step) {
+		for (String earlier : steps) {
+			if (earlier.equals(step))
+				return true;
+			if (!done.contains(earlier) && !blocked.contains(earlier.substring(0, earlier.indexOf(':'))))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the server for running steps that are blocked by another session.
+	 */
+	private void detectBlocked() {
+		Map<String, String> candidates = new HashMap<>();
+		synchronized (this) {
+			for (Map.Entry<String, String> e : running.entrySet())
+				if (!blocked.contains(e.getKey()))
+					candidates.put(e.getKey(), e.getValue());
+		}
+		if (candidates.isEmpty())
+			return;
+
+		List<String> found = new ArrayList<>();
+		synchronized (monitor) {
+			try {
+				PreparedStatement stmt = monitor.prepareStatement(
+						"SELECT blocking_session_id FROM sys.dm_exec_requests WHERE session_id = ?");
+				for (String actor : candidates.keySet()) {
+					stmt.setInt(1, sessions.get(actor));
+					ResultSet rs = stmt.executeQuery();
+					if (rs.next() && rs.getInt(1) != 0)
+						found.add(actor);
+				}
+				stmt.close();
+				monitor.commit();
+			} catch (SQLException e) {
+				System.err.println("SQLException: " + e);
+				return;
+			}
+		}
+
+		synchronized (this) {
+			for (String actor : found) {
+				// Skip an actor that moved on to another step while the server was checked
+				String step = running.get(actor);
+				if (step != null && step.equals(candidates.get(actor))) {
+					System.out.println("Step " + step + " is blocked.");
+					blocked.add(actor);
+					wasBlocked.add(step);
+				}
+			}
+			if (!found.isEmpty())
+				notifyAll();
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of database connections split into sub-pools by isolation level, so a
+ * call can pick its isolation level without a SET TRANSACTION ISOLATION LEVEL
+ * round trip and without leaking the level to the next user of the
+ * connection. Every connection stays at the level of its sub-pool.
+ *
+ * The sub-pools share one connection budget. A connection is opened at the
+ * requested level while the budget allows. Once every connection is open the
+ * sub-pools rebalance from demand: borrows per level are counted with decay
+ * and give each level a target share of the budget. A connection released to
+ * a level above its target moves to a level below its target, paying the one
+ * isolation change on release instead of on the next borrow. A borrow that
+ * finds its level empty takes an idle connection from the level with the
+ * largest surplus and converts it. A borrow that finds no connection at all
+ * waits for a release, at most the maximum wait.
+ */
+public class IsolationPools implements AutoCloseable {
+	/**
+	 * Supported isolation levels
+	 */
+	private static final int[] LEVELS = { Connection.TRANSACTION_READ_UNCOMMITTED,
+			Connection.TRANSACTION_READ_COMMITTED, Connection.TRANSACTION_REPEATABLE_READ,
+			Connection.TRANSACTION_SERIALIZABLE, DatabaseTransactions.TRANSACTION_SNAPSHOT };
+
+	/**
+	 * Number of borrows after which demand counts are halved
+	 */
+	private static final int DECAY_INTERVAL = 256;
+
+	/**
+	 * Maximum number of connections over all levels
+	 */
+	private final int size;
+
+	/**
+	 * Idle connections by level index
+	 */
+	private final List<ArrayDeque<Connection>> idle;
+
+	/**
+	 * Open connections by level index, idle or borrowed
+	 */
+	private final int[] assigned;
+
+	/**
+	 * Recent borrows by level index, halved every DECAY_INTERVAL borrows
+	 */
+	private final int[] demand;
+
+	/**
+	 * Threads waiting by level index
+	 */
+	private final int[] waiting;
+
+	/**
+	 * Level index of every open connection
+	 */
+	private final Map<Connection, Integer> levelOf = new IdentityHashMap<>();
+
+	/**
+	 * Connections opened or being opened
+	 */
+	private int opened;
+
+	/**
+	 * Borrows since demand was last halved
+	 */
+	private int borrows;
+
+	/**
+	 * Connections moved between levels
+	 */
+	private long conversions;
+
+	/**
+	 * True once the pools are closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Longest wait for a connection in milliseconds
+	 */
+	private long maxWaitMillis = 30000;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size
+	 *             maximum number of connections over all isolation levels
+	 */
+	public IsolationPools(int size) {
+		this.size = Math.max(1, size);
+		this.idle = new ArrayList<>(LEVELS.length);
+		for (int i = 0; i < LEVELS.length; i++)
+			idle.add(new ArrayDeque<>());
+		this.assigned = new int[LEVELS.length];
+		this.demand = new int[LEVELS.length];
+		this.waiting = new int[LEVELS.length];
+	}
+
+	/**
+	 * Sets the longest time borrow() waits for a connection to be released.
+	 *
+	 * @param millis
+	 *               maximum wait in milliseconds
+	 */
+	public synchronized void setMaxWaitMillis(long millis) {
+		this.maxWaitMillis = millis;
+	}
+
+	/**
+	 * Borrows a connection set to an isolation level, waiting for one to be
+	 * released if the budget is used up.
+	 *
+	 * @param isolation
+	 *                  isolation level, a Connection.TRANSACTION_ constant or
+	 *                  DatabaseTransactions.TRANSACTION_SNAPSHOT
+	 * @return
+	 *         connection at the isolation level
+	 * @throws SQLException
+	 *                      if the level is not supported, a connection cannot
+	 *                      be opened or the wait is interrupted or longer than
+	 *                      the maximum wait
+	 */
+	public Connection borrow(int isolation) throws SQLException {
+		int level = indexOf(isolation);
+		Connection convert = null;
+		synchronized (this) {
+			recordDemand(level);
+			long end = System.currentTimeMillis() + maxWaitMillis;
+			while (true) {
+				if (closed)
+					throw new SQLException("Connection pools are closed.");
+				Connection con = idle.get(level).poll();
+				if (con != null)
+					return con;
+				if (opened < size) {
+					opened++;
+					assigned[level]++;
+					break;
+				}
+				int donor = donor(level);
+				if (donor != -1) {
+					convert = idle.get(donor).poll();
+					assigned[donor]--;
+					assigned[level]++;
+					levelOf.put(convert, level);
+					conversions++;
+					break;
+				}
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0)
+					throw new SQLException("Timed out after " + maxWaitMillis + " ms waiting for a connection.");
+				waiting[level]++;
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted waiting for a connection.", e);
+				} finally {
+					waiting[level]--;
+				}
+			}
+		}
+
+		// Open or convert outside the lock
+		if (convert != null) {
+			try {
+				convert.setTransactionIsolation(isolation);
+				return convert;
+			} catch (SQLException e) {
+				discard(convert, level);
+				throw e;
+			}
+		}
+		Connection con = null;
+		try {
+			con = DatabaseTransactions.openConnection();
+			con.setTransactionIsolation(isolation);
+		} catch (SQLException e) {
+			if (con != null)
+				close(con);
+			synchronized (this) {
+				opened--;
+				assigned[level]--;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			levelOf.put(con, level);
+		}
+		return con;
+	}
+
+	/**
+	 * Returns a borrowed connection. The connection must have been committed or
+	 * rolled back.
+	 *
+	 * @param con
+	 *            connection to return
+	 */
+	public void release(Connection con) {
+		int level;
+		int target = -1;
+		synchronized (this) {
+			Integer l = levelOf.get(con);
+			if (l == null || closed) {
+				close(con);
+				return;
+			}
+			level = l;
+			if (opened == size)
+				target = receiver(level);
+			if (target == -1) {
+				idle.get(level).add(con);
+				notifyAll();
+				return;
+			}
+			// Move to the level that needs it, converting before it becomes idle
+			assigned[level]--;
+			assigned[target]++;
+			levelOf.put(con, target);
+			conversions++;
+		}
+		try {
+			con.setTransactionIsolation(LEVELS[target]);
+		} catch (SQLException e) {
+			discard(con, target);
+			return;
+		}
+		synchronized (this) {
+			if (closed) {
+				close(con);
+				return;
+			}
+			idle.get(target).add(con);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the number of times a connection changed isolation level.
+	 *
+	 * @return
+	 *         number of conversions
+	 */
+	public synchronized long getConversions() {
+		return conversions;
+	}
+
+	/**
+	 * Returns the number of open connections at an isolation level.
+	 *
+	 * @param isolation
+	 *                  isolation level
+	 * @return
+	 *         connections assigned to the level, idle or borrowed
+	 */
+	public synchronized int getAssigned(int isolation) {
+		return assigned[indexOf(isolation)];
+	}
+
+	/**
+	 * Returns the maximum number of connections.
+	 *
+	 * @return
+	 *         pool size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Closes every idle connection. Borrowed connections are closed when they are
+	 * released.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (ArrayDeque<Connection> q : idle) {
+			for (Connection con : q)
+				close(con);
+			q.clear();
+		}
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder buf = new StringBuilder("IsolationPools[size=").append(size).append(", assigned=");
+		for (int i = 0; i < LEVELS.length; i++)
+			buf.append(i == 0 ? "" : "/").append(assigned[i]);
+		return buf.append(", conversions=").append(conversions).append(']').toString();
+	}
+
+	/**
+	 * Returns the index of a supported isolation level.
+	 */
+	private static int indexOf(int isolation) {
+		for (int i = 0; i < LEVELS.length; i++)
+			if (LEVELS[i] == isolation)
+				return i;
+		throw new IllegalArgumentException("Unsupported isolation level " + isolation + ".");
+	}
+
+	/**
+	 * Counts a borrow, halving all counts periodically so the targets follow
+	 * recent demand.
+	 */
+	private void recordDemand(int level) {
+		demand[level]++;
+		if (++borrows >= DECAY_INTERVAL) {
+			borrows = 0;
+			for (int i = 0; i < demand.length; i++)
+				demand[i] >>= 1;
+		}
+	}
+
+	/**
+	 * Returns the share of the budget a level should hold, at least one
+	 * connection for any level in recent demand.
+	 */
+	private int target(int level) {
+		long total = 0;
+		for (int d : demand)
+			total += d;
+		if (demand[level] == 0 || total == 0)
+			return 0;
+		return Math.max(1, (int) (size * demand[level] / total));
+	}
+
+	/**
+	 * Returns the level with an idle connection and the largest surplus over its
+	 * target, or -1 if no other level has an idle connection.
+	 */
+	private int donor(int level) {
+		int best = -1;
+		int bestSurplus = Integer.MIN_VALUE;
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (i == level || idle.get(i).isEmpty())
+				continue;
+			int surplus = assigned[i] - target(i);
+			if (surplus > bestSurplus) {
+				best = i;
+				bestSurplus = surplus;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns a level that should receive a connection released to a level above
+	 * its target, or -1 to keep the connection at its level. A level with waiting
+	 * threads and no idle connection is preferred, then the level furthest below
+	 * its target.
+	 */
+	private int receiver(int level) {
+		if (waiting[level] > 0 || assigned[level] <= target(level))
+			return -1;
+		int best = -1;
+		int bestDeficit = 0;
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (i == level)
+				continue;
+			if (waiting[i] > 0 && idle.get(i).isEmpty())
+				return i;
+			int deficit = target(i) - assigned[i];
+			if (deficit > bestDeficit) {
+				best = i;
+				bestDeficit = deficit;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Drops a connection whose isolation level could not be changed.
+	 */
+	private void discard(Connection con, int level) {
+		close(con);
+		synchronized (this) {
+			levelOf.remove(con);
+			assigned[level]--;
+			opened--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes a connection, reporting any error.
+	 */
+	private static void close(Connection con) {
+		try {
+			con.close();
+		} catch (SQLException e) {
+			System.err.println("SQLException: " + e);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package trans;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the JDBC work done by each DatabaseTransactions operation. A wrapped
+ * connection is a dynamic proxy whose statements and result sets are proxies
+ * too, so every prepare, execute, commit, rollback and fetched row passes
+ * through the profiler with the time spent in the driver.
+ *
+ * Work is attributed to the operation whose scope is open on the calling
+ * thread. Closing the scope adds its counts and the bytes the thread allocated
+ * during the operation to the breakdown of that operation. Work done outside
+ * any scope is added to the "other" operation. Bytes transferred are estimated
+ * from the sizes of the parameter values bound and the column values read.
+ */
+public class JdbcProfiler {
+	/**
+	 * Scope used when profiling is off
+	 */
+	public static final Scope NONE = new Scope(null, null);
+
+	/**
+	 * Operation that work outside any scope is attributed to
+	 */
+	private static final String OTHER = "other";
+
+	/**
+	 * Kinds of JDBC calls counted
+	 */
+	public enum Kind {
+		PREPARE, EXECUTE, COMMIT, ROLLBACK, FETCH
+	}
+
+	/**
+	 * Thread allocation counter
+	 */
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Open scope of each thread
+	 */
+	private final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+	/**
+	 * JDBC totals by operation
+	 */
+	private final Map<String, JdbcStats> breakdown = new TreeMap<>();
+
+	/**
+	 * Wraps a connection so its JDBC calls are profiled.
+	 *
+	 * @param con
+	 *            connection to wrap
+	 * @return
+	 *         profiled connection
+	 */
+	public Connection wrap(Connection con) {
+		return proxy(Connection.class, con, null);
+	}
+
+	/**
+	 * Starts attributing the JDBC calls of the current thread to an operation.
+	 * Scopes nest: calls made while an inner scope is open count only for the
+	 * inner operation.
+	 *
+	 * @param operation
+	 *                  name of the DatabaseTransactions operation
+	 * @return
+	 *         scope to close when the operation completes
+	 */
+	public Scope begin(String operation) {
+		Scope scope = new Scope(this, operation);
+		scope.parent = current.get();
+		current.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Returns a copy of the JDBC totals by operation.
+	 *
+	 * @return
+	 *         totals keyed by operation name
+	 */
+	public synchronized Map<String, JdbcStats> getBreakdown() {
+		Map<String, JdbcStats> copy = new TreeMap<>();
+		for (Map.Entry<String, JdbcStats> e : breakdown.entrySet())
+			copy.put(e.getKey(), e.getValue().copy());
+		return copy;
+	}
+
+	/**
+	 * Forgets the totals.
+	 */
+	public synchronized void reset() {
+		breakdown.clear();
+	}
+
+	/**
+	 * Counts one JDBC call against the open scope of the thread.
+	 */
+	private void record(Kind kind, long nanos) {
+		Scope scope = current.get();
+		if (scope != null) {
+			scope.counts.add(kind, nanos);
+			return;
+		}
+		synchronized (this) {
+			breakdown.computeIfAbsent(OTHER, k -> new JdbcStats()).add(kind, nanos);
+		}
+	}
+
+	/**
+	 * Counts rows fetched and bytes transferred against the open scope of the
+	 * thread.
+	 */
+	private void transferred(long rows, long bytes) {
+		Scope scope = current.get();
+		if (scope != null) {
+			scope.counts.rows += rows;
+			scope.counts.bytes += bytes;
+			return;
+		}
+		synchronized (this) {
+			JdbcStats stats = breakdown.computeIfAbsent(OTHER, k -> new JdbcStats());
+			stats.rows += rows;
+			stats.bytes += bytes;
+		}
+	}
+
+	/**
+	 * Adds the counts of a completed operation to the breakdown.
+	 */
+	private synchronized void complete(Scope scope, long allocated) {
+		JdbcStats stats = breakdown.computeIfAbsent(scope.operation, k -> new JdbcStats());
+		stats.merge(scope.counts);
+		stats.calls++;
+		stats.allocatedBytes += allocated;
+	}
+
+	/**
+	 * Creates a profiling proxy of a JDBC object.
+	 */
+	private <T> T proxy(Class<T> type, T target, Connection owner) {
+		Handler handler = new Handler(target, owner);
+		T proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+		if (owner == null)
+			handler.owner = (Connection) proxy;
+		return proxy;
+	}
+
+	/**
+	 * Returns the approximate number of bytes of a column or parameter value.
+	 */
+	private static long sizeOf(Object value) {
+		if (value instanceof String)
+			return 2L * ((String) value).length();
+		if (value instanceof byte[])
+			return ((byte[]) value).length;
+		if (value instanceof Long || value instanceof Double || value instanceof java.util.Date)
+			return 8;
+		if (value instanceof Integer || value instanceof Float)
+			return 4;
+		if (value instanceof Short)
+			return 2;
+		if (value instanceof Byte || value instanceof Boolean)
+			return 1;
+		if (value instanceof java.math.BigDecimal)
+			return 16;
+		return 0;
+	}
+
+	/**
+	 * Forwards calls to a connection, statement or result set and counts them.
+	 */
+	private class Handler implements InvocationHandler {
+		private final Object target;
+
+		/**
+		 * Proxy of the connection the object belongs to
+		 */
+		private Connection owner;
+
+		Handler(Object target, Connection owner) {
+			this.target = target;
+			this.owner = owner;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals") && args != null && args.length == 1)
+				return proxy == args[0];
+			if (name.equals("hashCode") && args == null)
+				return System.identityHashCode(proxy);
+			Kind kind = kindOf(name);
+			long start = kind == null ? 0 : System.nanoTime();
+			Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				if (kind != null)
+					record(kind, System.nanoTime() - start);
+			}
+
+			if (target instanceof ResultSet) {
+				if (kind == Kind.FETCH && Boolean.TRUE.equals(result))
+					transferred(1, 0);
+				else if (name.startsWith("get") && args != null && args.length > 0)
+					transferred(0, sizeOf(result));
+				return result;
+			}
+			if (target instanceof PreparedStatement && name.startsWith("set") && args != null && args.length > 1)
+				transferred(0, sizeOf(args[1]));
+			return wrapResult(name, result);
+		}
+
+		/**
+		 * Returns the kind of a call or null if it is not counted.
+		 */
+		private Kind kindOf(String name) {
+			if (target instanceof Connection) {
+				switch (name) {
+				case "prepareStatement":
+				case "prepareCall":
+					return Kind.PREPARE;
+				case "commit":
+					return Kind.COMMIT;
+				case "rollback":
+					return Kind.ROLLBACK;
+				case "setTransactionIsolation":
+					return Kind.EXECUTE;
+				default:
+					return null;
+				}
+			}
+			if (target instanceof ResultSet)
+				return name.equals("next") ? Kind.FETCH : null;
+			return name.startsWith("execute") ? Kind.EXECUTE : null;
+		}
+
+		/**
+		 * Wraps statements, result sets and connections returned by the target.
+		 */
+		private Object wrapResult(String name, Object result) {
+			if (result instanceof CallableStatement)
+				return proxy(CallableStatement.class, (CallableStatement) result, owner);
+			if (result instanceof PreparedStatement)
+				return proxy(PreparedStatement.class, (PreparedStatement) result, owner);
+			if (result instanceof Statement)
+				return proxy(Statement.class, (Statement) result, owner);
+			if (result instanceof ResultSet)
+				return proxy(ResultSet.class, (ResultSet) result, owner);
+			if (result instanceof Connection && name.equals("getConnection"))
+				return owner;
+			return result;
+		}
+	}
+
+	/**
+	 * An operation being profiled on one thread. Closing the scope adds its counts
+	 * to the breakdown.
+	 */
+	public static class Scope implements AutoCloseable {
+		/**
+		 * Owner, null for NONE
+		 */
+		private JdbcProfiler owner;
+
+		private final String operation;
+
+		private final JdbcStats counts = new JdbcStats();
+
+		private final long allocatedAtStart;
+
+		/**
+		 * Scope that was open on the thread when this one began
+		 */
+		private Scope parent;
+
+		private Scope(JdbcProfiler owner, String operation) {
+			this.owner = owner;
+			this.operation = operation;
+			this.allocatedAtStart = owner == null ? 0
+					: THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		@Override
+		public void close() {
+			if (owner == null)
+				return;
+			long allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedAtStart;
+			if (parent == null)
+				owner.current.remove();
+			else
+				owner.current.set(parent);
+			owner.complete(this, allocated);
+			owner = null;
+		}
+	}
+
+	/**
+	 * JDBC totals for one operation.
+	 */
+	public static class JdbcStats {
+		/**
+		 * Number of completed calls of the operation
+		 */
+		public long calls;
+
+		/**
+		 * Number of JDBC calls by kind
+		 */
+		public final long[] counts = new long[Kind.values().length];
+
+		/**
+		 * Time spent in the driver by kind in nanoseconds
+		 */
+		public final long[] nanos = new long[Kind.values().length];
+
+		/**
+		 * Rows fetched
+		 */
+		public long rows;
+
+		/**
+		 * Estimated bytes of parameters bound and columns read
+		 */
+		public long bytes;
+
+		/**
+		 * Bytes allocated by the calling thread during the operation
+		 */
+		public long allocatedBytes;
+
+		void add(Kind kind, long nanos) {
+			counts[kind.ordinal()]++;
+			this.nanos[kind.ordinal()] += nanos;
+		}
+
+		void merge(JdbcStats other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+				nanos[i] += other.nanos[i];
+			}
+			rows += other.rows;
+			bytes += other.bytes;
+		}
+
+		JdbcStats copy() {
+			JdbcStats copy = new JdbcStats();
+			copy.merge(this);
+			copy.calls = calls;
+			copy.allocatedBytes = allocatedBytes;
+			return copy;
+		}
+
+		/**
+		 * Returns the number of JDBC calls of a kind.
+		 *
+		 * @param kind
+		 *             kind of call
+		 * @return
+		 *         number of calls
+		 */
+		public long count(Kind kind) {
+			return counts[kind.ordinal()];
+		}
+
+		/**
+		 * Returns the calls that go to the server: executes, commits and rollbacks.
+		 * The driver prepares statements lazily on first execute.
+		 *
+		 * @return
+		 *         number of server round trips
+		 */
+		public long roundTrips() {
+			return count(Kind.EXECUTE) + count(Kind.COMMIT) + count(Kind.ROLLBACK);
+		}
+
+		@Override
+		public String toString() {
+			double n = Math.max(1, calls);
+			StringBuilder buf = new StringBuilder();
+			buf.append(calls).append(" calls, per call: ")
+					.append(String.format("%.1f round trips", roundTrips() / n));
+			for (Kind kind : Kind.values())
+				buf.append(String.format(", %.1f %s (%.0f us)", count(kind) / n, kind.name().toLowerCase(),
+						nanos[kind.ordinal()] / n / 1000));
+			buf.append(String.format(", %.1f rows, %.0f bytes, %.0f bytes allocated", rows / n, bytes / n,
+					allocatedBytes / n));
+			return buf.toString();
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples SQL Server's lock and request DMVs while DatabaseTransactions
+ * operations run and attributes every lock wait to the operation that waited.
+ * Each sample records the blocking chain (waiting session, its blocker, the
+ * blocker's blocker and so on), the lock mode waited on and the lock modes held
+ * by the session at the head of the chain. Waits are summed into a per-operation
+ * breakdown by lock mode that can be polled and alerted on.
+ *
+ * Sampling uses its own monitor connection and only runs while at least one
+ * operation is in progress.
+ */
+public class LockDiagnostics implements AutoCloseable {
+	/**
+	 * Requests of every session blocked by another session, with the lock they
+	 * wait for
+	 */
+	private static final String WAITING_SQL = "SELECT r.session_id, r.blocking_session_id, r.wait_type, r.wait_time, "
+			+ "r.wait_resource, l.request_mode, l.resource_type FROM sys.dm_exec_requests r "
+			+ "LEFT JOIN sys.dm_tran_locks l ON l.request_session_id = r.session_id AND l.request_status = 'WAIT' "
+			+ "WHERE r.blocking_session_id <> 0";
+
+	/**
+	 * Lock modes granted to a session
+	 */
+	private static final String HELD_SQL = "SELECT DISTINCT request_mode, resource_type FROM sys.dm_tran_locks "
+			+ "WHERE request_session_id = ? AND request_status = 'GRANT' AND resource_type <> 'DATABASE'";
+
+	/**
+	 * Maximum number of samples kept for inspection
+	 */
+	private static final int MAX_SAMPLES = 1000;
+
+	/**
+	 * Scope used when diagnostics are off or the session id is unknown
+	 */
+	public static final Scope NONE = new Scope(null, -1);
+
+	/**
+	 * Connection used to query the DMVs
+	 */
+	private final Connection monitor;
+
+	/**
+	 * Runs the sampler
+	 */
+	private final ScheduledExecutorService sampler;
+
+	/**
+	 * Operations in progress by session id
+	 */
+	private final Map<Integer, Scope> active = new ConcurrentHashMap<>();
+
+	/**
+	 * Session ids of connections seen so far, so each connection is asked for its
+	 * id once. Wrapped connections such as profiler proxies compare by identity.
+	 */
+	private final Map<Connection, Integer> sessionIds = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Lock wait totals by operation name
+	 */
+	private final Map<String, LockWaitStats> breakdown = new TreeMap<>();
+
+	/**
+	 * Most recent samples with a lock wait
+	 */
+	private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param monitor
+	 *                       connection used only for sampling
+	 * @param intervalMillis
+	 *                       sampling interval in milliseconds
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public LockDiagnostics(Connection monitor, long intervalMillis) throws SQLException {
+		this.monitor = monitor;
+		// Reading the DMVs must never wait on the locks being diagnosed
+		monitor.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+		this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "lock-diagnostics");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts watching an operation running on a connection. Only the first call
+	 * for a connection queries its session id.
+	 *
+	 * @param operation
+	 *                  name of the DatabaseTransactions operation
+	 * @param con
+	 *                  connection the operation runs on
+	 * @return
+	 *         scope to close when the operation completes
+	 */
+	public Scope begin(String operation, Connection con) {
+		Integer sessionId = sessionIds.get(con);
+		if (sessionId == null) {
+			try {
+				Statement stmt = con.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT @@SPID");
+				rs.next();
+				sessionId = rs.getInt(1);
+				stmt.close();
+				sessionIds.put(con, sessionId);
+			} catch (SQLException e) {
+				System.err.println("SQLException: " + e);
+				return NONE;
+			}
+		}
+		Scope scope = new Scope(operation, sessionId);
+		scope.owner = this;
+		active.put(sessionId, scope);
+		return scope;
+	}
+
+	/**
+	 * Returns the lock wait breakdown by operation.
+	 *
+	 * @return
+	 *         copy of the lock wait totals by operation name
+	 */
+	public synchronized Map<String, LockWaitStats> getBreakdown() {
+		Map<String, LockWaitStats> copy = new TreeMap<>();
+		for (Map.Entry<String, LockWaitStats> e : breakdown.entrySet())
+			copy.put(e.getKey(), e.getValue().copy());
+		return copy;
+	}
+
+	/**
+	 * Returns the most recent samples that found a lock wait.
+	 *
+	 * @return
+	 *         samples, oldest first
+	 */
+	public synchronized List<Sample> getSamples() {
+		return new ArrayList<>(samples);
+	}
+
+	/**
+	 * Clears the breakdown and the recorded samples.
+	 */
+	public synchronized void reset() {
+		breakdown.clear();
+		samples.clear();
+	}
+
+	/**
+	 * Stops sampling. The monitor connection is not closed.
+	 */
+	@Override
+	public void close() {
+		sampler.shutdownNow();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (Map.Entry<String, LockWaitStats> e : breakdown.entrySet())
+			buf.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		return buf.toString();
+	}
+
+	/**
+	 * Takes one sample of the waiting requests of the sessions being watched.
+	 */
+	private void sample() {
+		if (active.isEmpty())
+			return;
+		try {
+			// Waiting requests of every session, needed to follow blocking chains
+			Map<Integer, Integer> blockedBy = new HashMap<>();
+			List<Sample> found = new ArrayList<>();
+			Statement stmt = monitor.createStatement();
+			ResultSet rs = stmt.executeQuery(WAITING_SQL);
+			while (rs.next()) {
+				int session = rs.getInt(1);
+				int blocker = rs.getInt(2);
+				blockedBy.put(session, blocker);
+				Scope scope = active.get(session);
+				if (scope == null)
+					continue;
+				Sample s = new Sample(scope.operation, session, rs.getString(3), rs.getLong(4), rs.getString(5),
+						rs.getString(6), rs.getString(7));
+				found.add(s);
+			}
+			stmt.close();
+
+			for (Sample s : found) {
+				// Follow the chain to the head blocker, guarding against deadlock cycles
+				int session = s.sessionId;
+				while (blockedBy.containsKey(session) && s.chain.size() <= blockedBy.size()) {
+					session = blockedBy.get(session);
+					s.chain.add(session);
+				}
+				PreparedStatement held = monitor.prepareStatement(HELD_SQL);
+				held.setInt(1, session);
+				ResultSet hrs = held.executeQuery();
+				while (hrs.next())
+					s.headHeldModes.add(hrs.getString(1) + " " + hrs.getString(2));
+				held.close();
+				Scope scope = active.get(s.sessionId);
+				if (scope != null)
+					scope.observe(s);
+			}
+			monitor.commit();
+
+			if (!found.isEmpty()) {
+				synchronized (this) {
+					for (Sample s : found) {
+						samples.addLast(s);
+						if (samples.size() > MAX_SAMPLES)
+							samples.removeFirst();
+					}
+				}
+			}
+		} catch (SQLException e) {
+			System.err.println("SQLException: " + e);
+			try {
+				monitor.rollback();
+			} catch (SQLException ex) {
+				System.err.println("SQLException: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Adds the waits of a completed operation to the breakdown.
+	 */
+	private synchronized void complete(Scope scope) {
+		active.remove(scope.sessionId, scope);
+		LockWaitStats stats = breakdown.get(scope.operation);
+		if (stats == null) {
+			stats = new LockWaitStats();
+			breakdown.put(scope.operation, stats);
+		}
+		stats.calls++;
+		long total = 0;
+		for (Map.Entry<String, Long> e : scope.waitByMode.entrySet()) {
+			stats.waitMillisByMode.merge(e.getKey(), e.getValue(), Long::sum);
+			total += e.getValue();
+		}
+		if (total > 0) {
+			stats.blockedCalls++;
+			stats.totalWaitMillis += total;
+			stats.maxWaitMillis = Math.max(stats.maxWaitMillis, total);
+		}
+	}
+
+	/**
+	 * An operation being watched. Closing the scope adds its waits to the
+	 * breakdown.
+	 */
+	public static class Scope implements AutoCloseable {
+		private final String operation;
+
+		private final int sessionId;
+
+		/**
+		 * Owner, null for NONE
+		 */
+		private LockDiagnostics owner;
+
+		/**
+		 * Longest observed duration of each wait, keyed by wait resource
+		 */
+		private final Map<String, Long> waitByResource = new HashMap<>();
+
+		/**
+		 * Lock mode of each wait, keyed by wait resource
+		 */
+		private final Map<String, String> modeByResource = new HashMap<>();
+
+		/**
+		 * Wait time by lock mode, filled in on close
+		 */
+		private final Map<String, Long> waitByMode = new HashMap<>();
+
+		private Scope(String operation, int sessionId) {
+			this.operation = operation;
+			this.sessionId = sessionId;
+		}
+
+		private synchronized void observe(Sample s) {
+			// wait_time is the length of the current wait so keep the largest seen
+			String key = s.waitType + " " + s.waitResource;
+			waitByResource.merge(key, s.waitMillis, Math::max);
+			modeByResource.put(key, s.waitedMode == null ? s.waitType : s.waitedMode);
+		}
+
+		@Override
+		public void close() {
+			if (owner == null)
+				return;
+			synchronized (this) {
+				for (Map.Entry<String, Long> e : waitByResource.entrySet())
+					waitByMode.merge(modeByResource.get(e.getKey()), e.getValue(), Long::sum);
+			}
+			owner.complete(this);
+			owner = null;
+		}
+	}
+
+	/**
+	 * One observation of a watched session waiting on a lock.
+	 */
+	public static class Sample {
+		/**
+		 * Time of the sample in milliseconds since the epoch
+		 */
+		public final long time = System.currentTimeMillis();
+
+		/**
+		 * Operation that was waiting
+		 */
+		public final String operation;
+
+		/**
+		 * Session id that was waiting
+		 */
+		public final int sessionId;
+
+		/**
+		 * SQL Server wait type, for example LCK_M_X
+		 */
+		public final String waitType;
+
+		/**
+		 * Length of the wait so far in milliseconds
+		 */
+		public final long waitMillis;
+
+		/**
+		 * Resource waited on
+		 */
+		public final String waitResource;
+
+		/**
+		 * Lock mode requested, null if the wait is not on a lock
+		 */
+		public final String waitedMode;
+
+		/**
+		 * Type of the locked resource, for example KEY or OBJECT
+		 */
+		public final String resourceType;
+
+		/**
+		 * Blocking chain starting with the waiting session and ending with the head
+		 * blocker
+		 */
+		public final List<Integer> chain = new ArrayList<>();
+
+		/**
+		 * Lock modes held by the head blocker as "mode resourceType"
+		 */
+		public final List<String> headHeldModes = new ArrayList<>();
+
+		Sample(String operation, int sessionId, String waitType, long waitMillis, String waitResource,
+				String waitedMode, String resourceType) {
+			this.operation = operation;
+			this.sessionId = sessionId;
+			this.waitType = waitType;
+			this.waitMillis = waitMillis;
+			this.waitResource = waitResource;
+			this.waitedMode = waitedMode;
+			this.resourceType = resourceType;
+			chain.add(sessionId);
+		}
+
+		@Override
+		public String toString() {
+			return operation + " session " + sessionId + " waiting " + waitMillis + " ms on " + waitedMode + " "
+					+ resourceType + " (" + waitType + ") chain " + chain + " head holds " + headHeldModes;
+		}
+	}
+
+	/**
+	 * Lock wait totals for one operation.
+	 */
+	public static class LockWaitStats {
+		/**
+		 * Number of completed calls
+		 */
+		public long calls;
+
+		/**
+		 * Number of calls that waited on a lock
+		 */
+		public long blockedCalls;
+
+		/**
+		 * Total observed lock wait in milliseconds
+		 */
+		public long totalWaitMillis;
+
+		/**
+		 * Longest observed lock wait of a single call in milliseconds
+		 */
+		public long maxWaitMillis;
+
+		/**
+		 * Observed lock wait in milliseconds by lock mode waited on
+		 */
+		public final Map<String, Long> waitMillisByMode = new TreeMap<>();
+
+		LockWaitStats copy() {
+			LockWaitStats c = new LockWaitStats();
+			c.calls = calls;
+			c.blockedCalls = blockedCalls;
+			c.totalWaitMillis = totalWaitMillis;
+			c.maxWaitMillis = maxWaitMillis;
+			c.waitMillisByMode.putAll(waitMillisByMode);
+			return c;
+		}
+
+		@Override
+		public String toString() {
+			return "calls=" + calls + " blocked=" + blockedCalls + " totalWait=" + totalWaitMillis + "ms maxWait="
+					+ maxWaitMillis + "ms byMode=" + waitMillisByMode;
+		}
+	}
+}
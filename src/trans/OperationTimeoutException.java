@@ -0,0 +1,58 @@
+package trans;
+
+import java.sql.SQLTimeoutException;
+
+/**
+ * Thrown when a transaction operation does not complete before its deadline,
+ * either because a lock wait exceeded the lock timeout or because a query was
+ * cancelled by its query timeout. The transaction has been rolled back.
+ */
+public class OperationTimeoutException extends SQLTimeoutException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Name of the operation that timed out
+	 */
+	private final String operation;
+
+	/**
+	 * Deadline of the operation in milliseconds
+	 */
+	private final long deadlineMillis;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param operation
+	 *                       name of the operation that timed out
+	 * @param deadlineMillis
+	 *                       deadline of the operation in milliseconds
+	 * @param cause
+	 *                       lock or query timeout reported by the driver or null
+	 */
+	public OperationTimeoutException(String operation, long deadlineMillis, Throwable cause) {
+		super(operation + " exceeded deadline of " + deadlineMillis + " ms.", "HYT00", 0, cause);
+		this.operation = operation;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 * Returns the name of the operation that timed out.
+	 * 
+	 * @return
+	 *         operation name
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Returns the deadline of the operation.
+	 * 
+	 * @return
+	 *         deadline in milliseconds
+	 */
+	public long getDeadlineMillis() {
+		return deadlineMillis;
+	}
+}
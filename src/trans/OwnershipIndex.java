@@ -0,0 +1,227 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * In-memory map from acctId to the cid that owns the account, used to validate
+ * transfers without reading the Account table. Account ownership rarely
+ * changes, so the whole map is loaded once and kept current by the operations
+ * that create accounts.
+ *
+ * The map is an open-addressing hash table over two int arrays with linear
+ * probing, so lookups do not box keys or values and the table stays a few
+ * bytes per account.
+ */
+public class OwnershipIndex {
+	/**
+	 * Returned by get() for an account that is not in the index
+	 */
+	public static final int MISSING = Integer.MIN_VALUE;
+
+	/**
+	 * Owner of an account whose cid is NULL
+	 */
+	public static final int NO_OWNER = Integer.MIN_VALUE + 1;
+
+	/**
+	 * Initial number of slots, a power of two
+	 */
+	private static final int INITIAL_SLOTS = 64;
+
+	/**
+	 * Account ids by slot
+	 */
+	private int[] keys;
+
+	/**
+	 * Owner cids by slot
+	 */
+	private int[] values;
+
+	/**
+	 * True for slots holding an entry
+	 */
+	private boolean[] used;
+
+	/**
+	 * Number of entries
+	 */
+	private int size;
+
+	/**
+	 * True once the index holds every account
+	 */
+	private boolean loaded;
+
+	/**
+	 * Constructor.
+	 */
+	public OwnershipIndex() {
+		allocate(INITIAL_SLOTS);
+	}
+
+	/**
+	 * Replaces the contents of the index with the owners of all accounts. Runs in
+	 * the current transaction of the connection and does not commit. Accounts
+	 * without an owner are stored as NO_OWNER.
+	 *
+	 * @param con
+	 *            connection to read from
+	 * @throws SQLException
+	 *                      if an error occurs
+	 */
+	public void load(Connection con) throws SQLException {
+		PreparedStatement stmt = con.prepareStatement("SELECT acctId, cid FROM Account");
+		ResultSet rs = stmt.executeQuery();
+		synchronized (this) {
+			allocate(INITIAL_SLOTS);
+			size = 0;
+			while (rs.next()) {
+				int acctId = rs.getInt(1);
+				int cid = rs.getInt(2);
+				put(acctId, rs.wasNull() ? NO_OWNER : cid);
+			}
+			loaded = true;
+		}
+		stmt.close();
+		System.out.println("Loaded owners of " + size() + " accounts.");
+	}
+
+	/**
+	 * Returns true if the index has been loaded since it was last cleared.
+	 *
+	 * @return
+	 *         true if the index holds every account
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Empties the index. The next user must load it again.
+	 */
+	public synchronized void clear() {
+		allocate(INITIAL_SLOTS);
+		size = 0;
+		loaded = false;
+	}
+
+	/**
+	 * Returns the owner of an account.
+	 *
+	 * @param acctId
+	 *               account id
+	 * @return
+	 *         cid of the owner or MISSING if the account is not in the index
+	 */
+	public synchronized int get(int acctId) {
+		int mask = keys.length - 1;
+		for (int slot = hash(acctId) & mask; used[slot]; slot = (slot + 1) & mask)
+			if (keys[slot] == acctId)
+				return values[slot];
+		return MISSING;
+	}
+
+	/**
+	 * Sets the owner of an account.
+	 *
+	 * @param acctId
+	 *               account id
+	 * @param cid
+	 *               cid of the owner
+	 */
+	public synchronized void put(int acctId, int cid) {
+		// Keep the table at most half full so probe sequences stay short
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		int mask = keys.length - 1;
+		int slot = hash(acctId) & mask;
+		while (used[slot]) {
+			if (keys[slot] == acctId) {
+				values[slot] = cid;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		used[slot] = true;
+		keys[slot] = acctId;
+		values[slot] = cid;
+		size++;
+	}
+
+	/**
+	 * Removes an account from the index.
+	 *
+	 * @param acctId
+	 *               account id
+	 */
+	public synchronized void remove(int acctId) {
+		int mask = keys.length - 1;
+		int slot = hash(acctId) & mask;
+		while (used[slot] && keys[slot] != acctId)
+			slot = (slot + 1) & mask;
+		if (!used[slot])
+			return;
+		// Shift later entries of the probe sequence back into the freed slot
+		int free = slot;
+		for (int next = (free + 1) & mask; used[next]; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				free = next;
+			}
+		}
+		used[free] = false;
+		size--;
+	}
+
+	/**
+	 * Returns the number of accounts in the index.
+	 *
+	 * @return
+	 *         number of accounts
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Doubles the number of slots and rehashes every entry.
+	 */
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(keys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i])
+				put(oldKeys[i], oldValues[i]);
+	}
+
+	/**
+	 * Allocates empty slots.
+	 */
+	private void allocate(int slots) {
+		keys = new int[slots];
+		values = new int[slots];
+		used = new boolean[slots];
+	}
+
+	/**
+	 * Spreads sequential account ids over the table.
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OwnershipIndex[size=" + size + ", slots=" + keys.length + ", loaded=" + loaded + "]";
+	}
+}
@@ -0,0 +1,221 @@
+package trans;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the total of all accounts by splitting the acctId key range into
+ * partitions and summing each partition on its own pooled connection. The
+ * partition sums are combined with fork/join.
+ *
+ * Every partition reads under SNAPSHOT isolation so the scan takes no shared
+ * locks and never blocks transfers. Each partition is its own transaction and
+ * reads its own snapshot, taken at its first read, so the total is not a
+ * point-in-time total: a transfer between two partitions that commits while
+ * the partitions start can be counted on one side only. Verify mode recomputes
+ * the total with a single serial query and fails if the totals differ, which
+ * checks the partitioning on data that is not being changed.
+ */
+public class ParallelTotals {
+	/**
+	 * Pool to borrow connections from
+	 */
+	private final ConnectionPool pool;
+
+	/**
+	 * Number of acctId ranges to sum in parallel
+	 */
+	private final int partitions;
+
+	/**
+	 * True to check the parallel total against the serial total
+	 */
+	private boolean verify;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool
+	 *                   connection pool to borrow connections from
+	 * @param partitions
+	 *                   number of acctId ranges to sum in parallel
+	 */
+	public ParallelTotals(ConnectionPool pool, int partitions) {
+		this.pool = pool;
+		this.partitions = Math.max(1, partitions);
+	}
+
+	/**
+	 * Sets correctness mode.
+	 *
+	 * @param verify
+	 *               true to check the parallel total against the serial total
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	/**
+	 * Computes the total of all accounts.
+	 *
+	 * @return
+	 *         total of all accounts
+	 * @throws SQLException
+	 *                      if an error occurs or in verify mode if the parallel
+	 *                      and serial totals differ
+	 */
+	public long total() throws SQLException {
+		long[] range = keyRange();
+		if (range == null)
+			return 0;
+
+		// Split [min, max] into partitions of near equal width
+		long width = (range[1] - range[0] + partitions) / partitions;
+		ForkJoinPool forkJoin = new ForkJoinPool(Math.min(partitions, pool.getSize()));
+		long total;
+		try {
+			total = forkJoin.invoke(new RangeSum(range[0], range[1], width));
+		} catch (PartitionFailure e) {
+			throw e.getCause();
+		} finally {
+			forkJoin.shutdown();
+		}
+		System.out.println("Parallel total over " + partitions + " partitions: " + total);
+
+		if (verify) {
+			long serial = sum(Long.MIN_VALUE, Long.MAX_VALUE);
+			if (serial != total)
+				throw new SQLException("Parallel total " + total + " does not match serial total " + serial + ".");
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the lowest and highest acctId or null if there are no accounts.
+	 */
+	private long[] keyRange() throws SQLException {
+		Connection con = borrow();
+		try {
+			PreparedStatement stmt = con.prepareStatement("SELECT min(acctId), max(acctId) FROM Account");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			long min = rs.getLong(1);
+			boolean empty = rs.wasNull();
+			long max = rs.getLong(2);
+			stmt.close();
+			con.commit();
+			return empty ? null : new long[] { min, max };
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			release(con);
+		}
+	}
+
+	/**
+	 * Sums the amount of accounts with acctId in [low, high] on a pooled
+	 * connection.
+	 */
+	private long sum(long low, long high) throws SQLException {
+		Connection con = borrow();
+		try {
+			PreparedStatement stmt = con.prepareStatement(
+					"SELECT COALESCE(sum(CAST(amount AS bigint)), 0) FROM Account WHERE acctId BETWEEN ? AND ?");
+			stmt.setLong(1, Math.max(low, Integer.MIN_VALUE));
+			stmt.setLong(2, Math.min(high, Integer.MAX_VALUE));
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			long sum = rs.getLong(1);
+			stmt.close();
+			con.commit();
+			return sum;
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			release(con);
+		}
+	}
+
+	/**
+	 * Borrows a connection set to SNAPSHOT isolation.
+	 */
+	private Connection borrow() throws SQLException {
+		Connection con = pool.borrow();
+		if (pool.getIsolation() != DatabaseTransactions.TRANSACTION_SNAPSHOT)
+			con.setTransactionIsolation(DatabaseTransactions.TRANSACTION_SNAPSHOT);
+		return con;
+	}
+
+	/**
+	 * Restores the isolation level of the pool and returns a connection to it.
+	 */
+	private void release(Connection con) throws SQLException {
+		try {
+			if (pool.getIsolation() != DatabaseTransactions.TRANSACTION_SNAPSHOT)
+				con.setTransactionIsolation(pool.getIsolation());
+		} finally {
+			pool.release(con);
+		}
+	}
+
+	/**
+	 * Sums a range of acctIds, forking when the range spans more than one
+	 * partition.
+	 */
+	private class RangeSum extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final long low;
+
+		private final long high;
+
+		private final long width;
+
+		RangeSum(long low, long high, long width) {
+			this.low = low;
+			this.high = high;
+			this.width = width;
+		}
+
+		@Override
+		protected Long compute() {
+			if (high - low < width) {
+				try {
+					return sum(low, high);
+				} catch (SQLException e) {
+					throw new PartitionFailure(e);
+				}
+			}
+			// Split on a partition boundary
+			long parts = (high - low + width) / width;
+			long mid = low + (parts / 2) * width - 1;
+			RangeSum left = new RangeSum(low, mid, width);
+			RangeSum right = new RangeSum(mid + 1, high, width);
+			left.fork();
+			long sum = right.compute();
+			return sum + left.join();
+		}
+	}
+
+	/**
+	 * Carries a SQLException out of a fork/join task.
+	 */
+	private static class PartitionFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		PartitionFailure(SQLException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized SQLException getCause() {
+			return (SQLException) super.getCause();
+		}
+	}
+}
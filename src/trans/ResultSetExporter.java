@@ -0,0 +1,389 @@
+package trans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Streams a ResultSet to a file through a FileChannel using reusable direct
+ * buffers. Rows are never collected in memory, so the heap used is constant
+ * regardless of the number of rows when the ResultSet itself streams (a
+ * forward-only statement with a fetch size).
+ *
+ * Integer columns are encoded straight from getInt()/getLong() without creating
+ * Strings. Character columns are read with getString(), which allocates in the
+ * driver, and encoded as UTF-8 into the buffer without further copies.
+ *
+ * CSV format: a header line of column names then one line per row. Values are
+ * quoted only when they contain a comma, quote or line break. NULL is an empty
+ * field.
+ *
+ * Binary format (little-endian): magic, column count, then for each column its
+ * type code and UTF-8 name. Rows follow in groups: row count, then for each
+ * column a null bitmap of (rows + 7) / 8 bytes and the values of that column
+ * (4 byte int, 8 byte long or 4 byte length plus UTF-8 bytes). A group with a
+ * row count of 0 ends the file.
+ */
+public class ResultSetExporter {
+	/**
+	 * Output file format
+	 */
+	public enum Format {
+		CSV, BINARY
+	}
+
+	/**
+	 * Marks the start of a binary export file
+	 */
+	public static final int MAGIC = 0x52534558;
+
+	/**
+	 * Binary type code of 4 byte int columns
+	 */
+	public static final byte TYPE_INT = 1;
+
+	/**
+	 * Binary type code of 8 byte long columns
+	 */
+	public static final byte TYPE_LONG = 2;
+
+	/**
+	 * Binary type code of UTF-8 string columns
+	 */
+	public static final byte TYPE_STRING = 3;
+
+	/**
+	 * Maximum rows in a binary row group
+	 */
+	private static final int GROUP_ROWS = 4096;
+
+	/**
+	 * Size of each reusable buffer in bytes
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Digits of Long.MIN_VALUE, which cannot be negated
+	 */
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+	/**
+	 * Writes a ResultSet to a file.
+	 *
+	 * @param rs
+	 *               result set to export, read to the end but not closed
+	 * @param file
+	 *               file to write
+	 * @param format
+	 *               file format
+	 * @return
+	 *         number of rows written
+	 * @throws SQLException
+	 *                      if a database error occurs
+	 * @throws IOException
+	 *                      if a file I/O error occurs
+	 */
+	public static long export(ResultSet rs, Path file, Format format) throws SQLException, IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return format == Format.CSV ? exportCsv(rs, channel) : exportBinary(rs, channel);
+		}
+	}
+
+	/**
+	 * Writes a ResultSet as CSV.
+	 */
+	private static long exportCsv(ResultSet rs, FileChannel channel) throws SQLException, IOException {
+		ResultSetMetaData meta = rs.getMetaData();
+		int columns = meta.getColumnCount();
+		byte[] types = columnTypes(meta);
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		for (int c = 1; c <= columns; c++) {
+			buf = ensure(buf, 1, channel);
+			if (c > 1)
+				buf.put((byte) ',');
+			buf = putCsvString(buf, meta.getColumnName(c), channel);
+		}
+		buf = ensure(buf, 1, channel);
+		buf.put((byte) '\n');
+
+		long rows = 0;
+		while (rs.next()) {
+			for (int c = 1; c <= columns; c++) {
+				// Longest number plus separator must fit before writing a field
+				buf = ensure(buf, 21, channel);
+				if (c > 1)
+					buf.put((byte) ',');
+				if (types[c - 1] == TYPE_STRING) {
+					String value = rs.getString(c);
+					if (value != null)
+						buf = putCsvString(buf, value, channel);
+				} else {
+					long value = types[c - 1] == TYPE_INT ? rs.getInt(c) : rs.getLong(c);
+					if (!rs.wasNull())
+						putLong(buf, value);
+				}
+			}
+			buf = ensure(buf, 1, channel);
+			buf.put((byte) '\n');
+			rows++;
+		}
+		flush(buf, channel);
+		return rows;
+	}
+
+	/**
+	 * Writes a ResultSet in the binary columnar format.
+	 */
+	private static long exportBinary(ResultSet rs, FileChannel channel) throws SQLException, IOException {
+		ResultSetMetaData meta = rs.getMetaData();
+		int columns = meta.getColumnCount();
+		byte[] types = columnTypes(meta);
+
+		ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC).putInt(columns);
+		for (int c = 1; c <= columns; c++) {
+			out = ensure(out, 1, channel);
+			out.put(types[c - 1]);
+			out = putLengthPrefixed(out, meta.getColumnName(c), channel);
+		}
+
+		// One reusable buffer and null bitmap per column for the current group
+		ByteBuffer[] values = new ByteBuffer[columns];
+		byte[][] nulls = new byte[columns][(GROUP_ROWS + 7) / 8];
+		for (int c = 0; c < columns; c++) {
+			int size = types[c] == TYPE_INT ? GROUP_ROWS * 4 : types[c] == TYPE_LONG ? GROUP_ROWS * 8 : BUFFER_SIZE;
+			values[c] = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		long rows = 0;
+		int groupRows = 0;
+		while (rs.next()) {
+			for (int c = 0; c < columns; c++) {
+				if (types[c] == TYPE_INT) {
+					int value = rs.getInt(c + 1);
+					values[c].putInt(value);
+					setNull(nulls[c], groupRows, rs.wasNull());
+				} else if (types[c] == TYPE_LONG) {
+					long value = rs.getLong(c + 1);
+					values[c].putLong(value);
+					setNull(nulls[c], groupRows, rs.wasNull());
+				} else {
+					String value = rs.getString(c + 1);
+					setNull(nulls[c], groupRows, value == null);
+					values[c] = putStringValue(values[c], value == null ? "" : value);
+				}
+			}
+			groupRows++;
+			rows++;
+			if (groupRows == GROUP_ROWS) {
+				out = writeGroup(out, groupRows, values, nulls, channel);
+				groupRows = 0;
+			}
+		}
+		if (groupRows > 0)
+			out = writeGroup(out, groupRows, values, nulls, channel);
+		out = ensure(out, 4, channel);
+		out.putInt(0);
+		flush(out, channel);
+		return rows;
+	}
+
+	/**
+	 * Writes one row group and clears the column buffers for the next group.
+	 */
+	private static ByteBuffer writeGroup(ByteBuffer out, int rows, ByteBuffer[] values, byte[][] nulls,
+			FileChannel channel) throws IOException {
+		out = ensure(out, 4, channel);
+		out.putInt(rows);
+		int bitmapBytes = (rows + 7) / 8;
+		for (int c = 0; c < values.length; c++) {
+			out = ensure(out, bitmapBytes, channel);
+			out.put(nulls[c], 0, bitmapBytes);
+			Arrays.fill(nulls[c], (byte) 0);
+
+			// Column values go straight from the column buffer to the file
+			flush(out, channel);
+			values[c].flip();
+			while (values[c].hasRemaining())
+				channel.write(values[c]);
+			values[c].clear();
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the binary type code of each column.
+	 */
+	private static byte[] columnTypes(ResultSetMetaData meta) throws SQLException {
+		byte[] types = new byte[meta.getColumnCount()];
+		for (int c = 0; c < types.length; c++) {
+			switch (meta.getColumnType(c + 1)) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				types[c] = TYPE_INT;
+				break;
+			case Types.BIGINT:
+				types[c] = TYPE_LONG;
+				break;
+			default:
+				types[c] = TYPE_STRING;
+			}
+		}
+		return types;
+	}
+
+	private static void setNull(byte[] bitmap, int row, boolean isNull) {
+		if (isNull)
+			bitmap[row >>> 3] |= (byte) (1 << (row & 7));
+	}
+
+	/**
+	 * Writes the decimal digits of a value.
+	 */
+	private static void putLong(ByteBuffer buf, long value) {
+		if (value == Long.MIN_VALUE) {
+			buf.put(MIN_LONG);
+			return;
+		}
+		if (value < 0) {
+			buf.put((byte) '-');
+			value = -value;
+		}
+		int start = buf.position();
+		do {
+			buf.put((byte) ('0' + value % 10));
+			value /= 10;
+		} while (value != 0);
+
+		// Digits were written least significant first
+		for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+			byte b = buf.get(i);
+			buf.put(i, buf.get(j));
+			buf.put(j, b);
+		}
+	}
+
+	/**
+	 * Writes a CSV field, quoting it if needed.
+	 */
+	private static ByteBuffer putCsvString(ByteBuffer buf, String value, FileChannel channel) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char ch = value.charAt(i);
+			quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+		}
+		if (quote) {
+			buf = ensure(buf, 1, channel);
+			buf.put((byte) '"');
+		}
+		for (int i = 0; i < value.length(); i++) {
+			buf = ensure(buf, 8, channel);
+			char ch = value.charAt(i);
+			if (ch == '"')
+				buf.put((byte) '"');
+			i = putChar(buf, value, i);
+		}
+		if (quote) {
+			buf = ensure(buf, 1, channel);
+			buf.put((byte) '"');
+		}
+		return buf;
+	}
+
+	/**
+	 * Writes a string as a 4 byte length and UTF-8 bytes to the output buffer.
+	 */
+	private static ByteBuffer putLengthPrefixed(ByteBuffer buf, String value, FileChannel channel)
+			throws IOException {
+		buf = ensure(buf, 4 + value.length() * 3, channel);
+		int lengthAt = buf.position();
+		buf.putInt(0);
+		for (int i = 0; i < value.length(); i++)
+			i = putChar(buf, value, i);
+		buf.putInt(lengthAt, buf.position() - lengthAt - 4);
+		return buf;
+	}
+
+	/**
+	 * Appends a string value to a column buffer, growing the buffer if needed.
+	 */
+	private static ByteBuffer putStringValue(ByteBuffer buf, String value) {
+		int needed = 4 + value.length() * 3;
+		if (buf.remaining() < needed) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, buf.position() + needed))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+		int lengthAt = buf.position();
+		buf.putInt(0);
+		for (int i = 0; i < value.length(); i++)
+			i = putChar(buf, value, i);
+		buf.putInt(lengthAt, buf.position() - lengthAt - 4);
+		return buf;
+	}
+
+	/**
+	 * Encodes the character at index i as UTF-8.
+	 *
+	 * @return
+	 *         index of the last char consumed
+	 */
+	private static int putChar(ByteBuffer buf, String value, int i) {
+		char ch = value.charAt(i);
+		if (ch < 0x80) {
+			buf.put((byte) ch);
+		} else if (ch < 0x800) {
+			buf.put((byte) (0xc0 | (ch >> 6)));
+			buf.put((byte) (0x80 | (ch & 0x3f)));
+		} else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1))) {
+			int cp = Character.toCodePoint(ch, value.charAt(i + 1));
+			buf.put((byte) (0xf0 | (cp >> 18)));
+			buf.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+			buf.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+			buf.put((byte) (0x80 | (cp & 0x3f)));
+			return i + 1;
+		} else {
+			buf.put((byte) (0xe0 | (ch >> 12)));
+			buf.put((byte) (0x80 | ((ch >> 6) & 0x3f)));
+			buf.put((byte) (0x80 | (ch & 0x3f)));
+		}
+		return i;
+	}
+
+	/**
+	 * Makes room for a number of bytes by writing the buffer to the file, or by
+	 * replacing it with a larger buffer if it is too small even when empty.
+	 */
+	private static ByteBuffer ensure(ByteBuffer buf, int bytes, FileChannel channel) throws IOException {
+		if (buf.remaining() >= bytes)
+			return buf;
+		flush(buf, channel);
+		if (buf.remaining() >= bytes)
+			return buf;
+		return ByteBuffer.allocateDirect(bytes).order(buf.order());
+	}
+
+	/**
+	 * Writes the contents of a buffer to the file and clears it.
+	 */
+	private static void flush(ByteBuffer buf, FileChannel channel) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+}
@@ -0,0 +1,231 @@
+package trans;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a statement file for every customer listing their accounts and
+ * balances.
+ *
+ * All customers and accounts are read by one streaming query in a single
+ * SNAPSHOT transaction on a pooled connection. The query takes no shared locks,
+ * so it never blocks transfers, and every statement is consistent as of the
+ * start of that transaction. SQL Server cannot share a snapshot between
+ * connections, so reading partitions on separate connections would give each
+ * partition its own point in time. Instead the rows are grouped by customer as
+ * they stream in and each customer is handed to a pool of worker threads that
+ * format and write the files in parallel. The number of customers waiting for a
+ * worker is bounded so memory stays flat for any number of customers.
+ */
+public class StatementGenerator {
+	/**
+	 * Customers waiting for a worker per worker
+	 */
+	private static final int QUEUE_PER_WORKER = 64;
+
+	/**
+	 * Rows fetched from the server at a time
+	 */
+	private static final int FETCH_SIZE = 1000;
+
+	/**
+	 * Pool to borrow the reading connection from
+	 */
+	private final ConnectionPool pool;
+
+	/**
+	 * Number of threads writing statements
+	 */
+	private final int workers;
+
+	/**
+	 * First error of a worker
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool
+	 *                connection pool to borrow the reading connection from
+	 * @param workers
+	 *                number of threads writing statements
+	 */
+	public StatementGenerator(ConnectionPool pool, int workers) {
+		this.pool = pool;
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Writes a statement for every customer to a directory. The file for customer
+	 * cid is named statement-cid.txt.
+	 *
+	 * @param dir
+	 *            directory to write to, created if it does not exist
+	 * @return
+	 *         number of statements written
+	 * @throws SQLException
+	 *                      if a database error occurs
+	 * @throws IOException
+	 *                      if a file I/O error occurs
+	 */
+	public int generate(Path dir) throws SQLException, IOException {
+		Files.createDirectories(dir);
+		failure = null;
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		Semaphore queued = new Semaphore(workers * QUEUE_PER_WORKER);
+		int count = 0;
+		Connection con = pool.borrow();
+		try {
+			con.setTransactionIsolation(DatabaseTransactions.TRANSACTION_SNAPSHOT);
+			Statement stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(FETCH_SIZE);
+			ResultSet rs = stmt.executeQuery("SELECT C.cid, C.name, A.acctId, A.accType, A.amount, CURRENT_TIMESTAMP "
+					+ "FROM Customer C LEFT JOIN Account A ON A.cid = C.cid ORDER BY C.cid, A.acctId");
+			CustomerStatement current = null;
+			while (rs.next() && failure == null) {
+				int cid = rs.getInt(1);
+				if (current == null || current.cid != cid) {
+					if (current != null) {
+						submit(executor, queued, current, dir);
+						count++;
+					}
+					current = new CustomerStatement(cid, rs.getString(2), rs.getTimestamp(6));
+				}
+				int acctId = rs.getInt(3);
+				if (!rs.wasNull()) {
+					int accType = rs.getInt(4);
+					current.add(acctId, rs.wasNull() ? "no type" : typeName(accType), rs.getInt(5));
+				}
+			}
+			if (current != null && failure == null) {
+				submit(executor, queued, current, dir);
+				count++;
+			}
+			stmt.close();
+			con.commit();
+		} catch (SQLException | IOException | RuntimeException e) {
+			// The connection goes back to the pool, so never leave the read open
+			con.rollback();
+			throw e;
+		} finally {
+			try {
+				con.setTransactionIsolation(pool.getIsolation());
+			} finally {
+				pool.release(con);
+				executor.shutdown();
+				awaitWorkers(executor);
+			}
+		}
+		if (failure != null)
+			throw failure;
+		System.out.println("Wrote " + count + " statements to " + dir + ".");
+		return count;
+	}
+
+	/**
+	 * Hands a customer to a worker, waiting while the queue is full.
+	 */
+	private void submit(ExecutorService executor, Semaphore queued, CustomerStatement statement, Path dir)
+			throws IOException {
+		try {
+			queued.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing statements.", e);
+		}
+		executor.execute(() -> {
+			try {
+				if (failure == null)
+					statement.write(dir.resolve("statement-" + statement.cid + ".txt"));
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			} finally {
+				queued.release();
+			}
+		});
+	}
+
+	/**
+	 * Waits for the workers to write the remaining statements.
+	 */
+	private static void awaitWorkers(ExecutorService executor) throws IOException {
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				System.out.println("Waiting for statements to be written.");
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing statements.", e);
+		}
+	}
+
+	/**
+	 * Returns the name of an account type as stored in Account.accType, or its
+	 * number if the type has no name.
+	 */
+	private static String typeName(int accType) {
+		switch (accType) {
+		case 1:
+			return "savings";
+		case 2:
+			return "checking";
+		default:
+			return "type " + accType;
+		}
+	}
+
+	/**
+	 * Accounts of one customer as read in the snapshot.
+	 */
+	private static class CustomerStatement {
+		private final int cid;
+
+		private final String name;
+
+		private final Timestamp asOf;
+
+		private final List<String> accounts = new ArrayList<>();
+
+		private long total;
+
+		CustomerStatement(int cid, String name, Timestamp asOf) {
+			this.cid = cid;
+			this.name = name;
+			this.asOf = asOf;
+		}
+
+		void add(int acctId, String type, int amount) {
+			accounts.add("Account " + acctId + " (" + type + "): " + amount);
+			total += amount;
+		}
+
+		void write(Path file) throws IOException {
+			try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+				out.write("Statement for customer " + cid + " " + name + " as of " + asOf);
+				out.newLine();
+				for (String account : accounts) {
+					out.write(account);
+					out.newLine();
+				}
+				out.write("Total: " + total);
+				out.newLine();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package trans;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory front for the TransferRequest dedup table. Keeps the outcomes of
+ * the most recently seen transfer request ids in an LRU map and remembers every
+ * id seen by this process in a bloom filter so that a retry of an id that has
+ * aged out of the LRU map can be looked up in the database, while a brand new
+ * id goes straight to the transfer.
+ */
+public class TransferDedup {
+	/**
+	 * Outcome recorded for a transfer that committed
+	 */
+	public static final String SUCCESS = "OK";
+
+	/**
+	 * Longest request id, the size of the TransferRequest.requestId column
+	 */
+	public static final int MAX_REQUEST_ID_LENGTH = 64;
+
+	/**
+	 * Number of hash functions used by the bloom filter
+	 */
+	private static final int HASHES = 3;
+
+	/**
+	 * Maximum number of outcomes kept in memory
+	 */
+	private final int capacity;
+
+	/**
+	 * Most recently used request ids and their outcomes
+	 */
+	private final LinkedHashMap<String, String> outcomes;
+
+	/**
+	 * Bloom filter bits
+	 */
+	private long[] bits;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *                 maximum number of outcomes kept in memory
+	 */
+	public TransferDedup(int capacity) {
+		this.capacity = capacity;
+		this.outcomes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > TransferDedup.this.capacity;
+			}
+		};
+		this.bits = new long[words(capacity)];
+	}
+
+	/**
+	 * Returns the bloom filter size for a number of ids.
+	 */
+	private static int words(int ids) {
+		// About 10 bits per remembered id keeps false positives near 1%
+		return Math.max(1, (int) ((ids * 10L + 63) / 64));
+	}
+
+	/**
+	 * Checks that a request id fits the TransferRequest table.
+	 *
+	 * @param requestId
+	 *                  client request id
+	 * @throws SQLException
+	 *                      if the id is empty or too long
+	 */
+	public static void checkRequestId(String requestId) throws SQLException {
+		if (requestId.isEmpty() || requestId.length() > MAX_REQUEST_ID_LENGTH)
+			throw new SQLException(
+					"Transfer request id must have 1 to " + MAX_REQUEST_ID_LENGTH + " characters.");
+	}
+
+	/**
+	 * Returns the outcome of a request id still held in memory.
+	 *
+	 * @param requestId
+	 *                  client request id
+	 * @return
+	 *         outcome or null if the id is not in memory
+	 */
+	public synchronized String lookup(String requestId) {
+		return outcomes.get(requestId);
+	}
+
+	/**
+	 * Returns false if the request id has definitely not been seen by this
+	 * process. A true result may be a false positive.
+	 *
+	 * @param requestId
+	 *                  client request id
+	 * @return
+	 *         true if the id may have been seen before
+	 */
+	public synchronized boolean mightContain(String requestId) {
+		int h = requestId.hashCode();
+		int h2 = (h >>> 16) | 1;
+		long size = bits.length * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (int) (((h + i * h2) & 0x7fffffffL) % size);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the outcome of a request id.
+	 *
+	 * @param requestId
+	 *                  client request id
+	 * @param outcome
+	 *                  outcome of the transfer
+	 */
+	public synchronized void record(String requestId, String outcome) {
+		outcomes.put(requestId, outcome);
+		add(requestId);
+	}
+
+	/**
+	 * Sets the bloom filter bits of a request id.
+	 */
+	private void add(String requestId) {
+		int h = requestId.hashCode();
+		int h2 = (h >>> 16) | 1;
+		long size = bits.length * 64L;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (int) (((h + i * h2) & 0x7fffffffL) % size);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Replaces the remembered request ids with the ids still in the dedup table,
+	 * for example after old ids were purged. The bloom filter is rebuilt from
+	 * scratch, sized for the larger of the capacity and the number of ids, so it
+	 * neither keeps purged ids nor fills up over time.
+	 *
+	 * @param requestIds
+	 *                   request ids in the dedup table
+	 */
+	public synchronized void rebuild(Collection<String> requestIds) {
+		outcomes.keySet().retainAll(new HashSet<>(requestIds));
+		bits = new long[words(Math.max(capacity, requestIds.size()))];
+		for (String requestId : requestIds)
+			add(requestId);
+	}
+
+	/**
+	 * Forgets all request ids, for example after the dedup table is recreated.
+	 */
+	public synchronized void clear() {
+		outcomes.clear();
+		Arrays.fill(bits, 0L);
+	}
+}